@@ -1,46 +1,707 @@
 package sc.fiji.timelapse;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fast Fourier transforms.
+ * <p>
+ * The transforms work in place on interleaved complex data, i.e. the real
+ * part of the k-th value is stored at index <code>2 * k</code> and its
+ * imaginary part at <code>2 * k + 1</code>. The bit-reversal permutation and
+ * the twiddle factors are computed once per transform size and cached, so
+ * that repeated transforms do not allocate anything.
+ * </p>
+ * <p>
+ * Sizes that are not a power of two are transformed exactly using Bluestein's
+ * algorithm, which expresses the DFT as a convolution with a chirp and
+ * evaluates it with power-of-two transforms of at least twice the size.
+ * </p>
+ * <p>
+ * Real input of even length n is transformed by packing it into n/2 complex
+ * values, transforming those and untangling the result; only the n/2+1
+ * non-redundant values of the (Hermitian) spectrum are returned.
+ * </p>
+ * <p>
+ * All transforms are also available for <code>float[]</code> data, so that
+ * callers holding many signals or spectra (e.g. of kymographs) need only half
+ * the memory and memory traffic when single precision suffices. Single
+ * precision signals are transformed in place in float arithmetic; each plan
+ * makes single precision copies of its tables the first time they are needed,
+ * so that double precision callers do not pay for them.
+ * </p>
+ */
 public class FFT {
-	/*
-	 * Thankfully borrowed from
-	 * http://www.cs.princeton.edu/introcs/97data/FFT.java
-	 * compute the FFT of x[], x.length must be a power of 2!
+	/**
+	 * The precomputed tables for a power-of-two transform size.
+	 */
+	protected static class Plan {
+		protected final int size;
+		/** pairs of indices to swap for the bit-reversal permutation */
+		protected final int[] swaps;
+		/** cos and sin of 2πk/size, for k < size/2 */
+		protected final double[] cos, sin;
+
+		protected Plan(final int size) {
+			this.size = size;
+
+			int log2 = Integer.numberOfTrailingZeros(size);
+			int count = 0;
+			final int[] swaps = new int[size];
+			for (int i = 0; i < size; i++) {
+				int j = log2 == 0 ? 0 : Integer.reverse(i) >>> (32 - log2);
+				if (i < j) {
+					swaps[count++] = i;
+					swaps[count++] = j;
+				}
+			}
+			this.swaps = new int[count];
+			System.arraycopy(swaps, 0, this.swaps, 0, count);
+
+			cos = new double[size / 2];
+			sin = new double[size / 2];
+			for (int k = 0; k < size / 2; k++) {
+				double angle = 2 * Math.PI * k / size;
+				cos[k] = Math.cos(angle);
+				sin[k] = Math.sin(angle);
+			}
+		}
+
+		/** the twiddle factors in single precision, made on first use */
+		protected float[] cosF;
+		protected volatile float[] sinF;
+
+		protected synchronized void makeFloatTables() {
+			if (sinF != null)
+				return;
+			cosF = toFloat(cos);
+			sinF = toFloat(sin);
+		}
+	}
+
+	/**
+	 * The precomputed chirp and its transform for Bluestein's algorithm.
+	 */
+	protected static class BluesteinPlan {
+		protected final int size, paddedSize;
+		/** cos and sin of πk²/size */
+		protected final double[] cos, sin;
+		/** the transformed conjugate chirp, interleaved */
+		protected final double[] kernel;
+		protected final ThreadLocal<double[]> scratch;
+
+		protected BluesteinPlan(final int size) {
+			this.size = size;
+			int paddedSize = 1;
+			while (paddedSize < 2 * size - 1)
+				paddedSize *= 2;
+			this.paddedSize = paddedSize;
+
+			cos = new double[size];
+			sin = new double[size];
+			for (int k = 0; k < size; k++) {
+				// k² modulo 2n keeps the angle small and thus accurate
+				double angle = Math.PI * (((long)k * k) % (2L * size)) / size;
+				cos[k] = Math.cos(angle);
+				sin[k] = Math.sin(angle);
+			}
+
+			kernel = new double[2 * paddedSize];
+			kernel[0] = cos[0];
+			kernel[1] = sin[0];
+			for (int k = 1; k < size; k++) {
+				kernel[2 * k] = kernel[2 * (paddedSize - k)] = cos[k];
+				kernel[2 * k + 1] = kernel[2 * (paddedSize - k) + 1] = sin[k];
+			}
+			transform(kernel, 0, paddedSize, false);
+
+			scratch = new ThreadLocal<double[]>() {
+				@Override
+				protected double[] initialValue() {
+					return new double[2 * BluesteinPlan.this.paddedSize];
+				}
+			};
+		}
+
+		/** the chirp, the kernel and the scratch in single precision, made on first use */
+		protected float[] cosF, sinF;
+		protected ThreadLocal<float[]> scratchF;
+		protected volatile float[] kernelF;
+
+		protected synchronized void makeFloatTables() {
+			if (kernelF != null)
+				return;
+			cosF = toFloat(cos);
+			sinF = toFloat(sin);
+			scratchF = new ThreadLocal<float[]>() {
+				@Override
+				protected float[] initialValue() {
+					return new float[2 * BluesteinPlan.this.paddedSize];
+				}
+			};
+			kernelF = toFloat(kernel);
+		}
+	}
+
+	/**
+	 * The twiddle factors to untangle a packed real transform.
+	 */
+	protected static class RealPlan {
+		/** cos and sin of 2πk/size, for k <= size/4 */
+		protected final double[] cos, sin;
+
+		protected RealPlan(final int size) {
+			cos = new double[size / 4 + 1];
+			sin = new double[size / 4 + 1];
+			for (int k = 0; k < cos.length; k++) {
+				double angle = 2 * Math.PI * k / size;
+				cos[k] = Math.cos(angle);
+				sin[k] = Math.sin(angle);
+			}
+		}
+
+		/** the twiddle factors in single precision, made on first use */
+		protected float[] cosF;
+		protected volatile float[] sinF;
+
+		protected synchronized void makeFloatTables() {
+			if (sinF != null)
+				return;
+			cosF = toFloat(cos);
+			sinF = toFloat(sin);
+		}
+	}
+
+	/** the maximal number of table values of all cached Bluestein and real plans */
+	private final static int MAX_CACHED_VALUES = 1 << 22;
+
+	private final static Plan[] plans = new Plan[31];
+	private final static PlanCache<BluesteinPlan> bluesteinPlans = new PlanCache<BluesteinPlan>() {
+		@Override
+		protected BluesteinPlan create(final int n) {
+			return new BluesteinPlan(n);
+		}
+
+		@Override
+		protected int getSize(final BluesteinPlan plan) {
+			return 2 * plan.size + plan.kernel.length;
+		}
+	};
+	private final static PlanCache<RealPlan> realPlans = new PlanCache<RealPlan>() {
+		@Override
+		protected RealPlan create(final int n) {
+			return new RealPlan(n);
+		}
+
+		@Override
+		protected int getSize(final RealPlan plan) {
+			return 2 * plan.cos.length;
+		}
+	};
+	private final static ThreadLocal<double[]> oddScratch = new ThreadLocal<double[]>();
+	private final static ThreadLocal<float[]> oddScratchF = new ThreadLocal<float[]>();
+
+	/**
+	 * A least recently used cache of plans by transform size.
+	 * <p>
+	 * There are only 31 power-of-two sizes, but every other length (e.g. every
+	 * row length of a kymograph) needs a plan of its own; the cache therefore
+	 * drops the least recently used plans once the tables of all cached plans
+	 * exceed {@link #MAX_CACHED_VALUES} values, like {@link SamplingPlan}
+	 * does.
+	 * </p>
+	 */
+	protected abstract static class PlanCache<P> {
+		private final Map<Integer, P> cache = new LinkedHashMap<Integer, P>(16, 0.75f, true);
+		private long cachedValues;
+
+		protected abstract P create(int n);
+
+		protected abstract int getSize(P plan);
+
+		public P get(final int n) {
+			synchronized (cache) {
+				final P plan = cache.get(n);
+				if (plan != null)
+					return plan;
+			}
+			// compute the tables outside the lock, so that plans of different sizes are made concurrently
+			final P plan = create(n);
+			synchronized (cache) {
+				final P previous = cache.get(n);
+				if (previous != null)
+					return previous;
+				cache.put(n, plan);
+				cachedValues += getSize(plan);
+				for (Iterator<P> iter = cache.values().iterator(); cachedValues > MAX_CACHED_VALUES && iter.hasNext(); ) {
+					final P eldest = iter.next();
+					if (eldest == plan)
+						break;
+					cachedValues -= getSize(eldest);
+					iter.remove();
+				}
+			}
+			return plan;
+		}
+	}
+
+	protected static boolean isPowerOfTwo(final int n) {
+		return n > 0 && (n & (n - 1)) == 0;
+	}
+
+	protected static Plan getPlan(final int n) {
+		if (!isPowerOfTwo(n))
+			throw new IllegalArgumentException("n is not a power of 2: " + n);
+		final int log2 = Integer.numberOfTrailingZeros(n);
+		Plan plan = plans[log2];
+		if (plan == null) {
+			synchronized (plans) {
+				plan = plans[log2];
+				if (plan == null)
+					plans[log2] = plan = new Plan(n);
+			}
+		}
+		return plan;
+	}
+
+	protected static BluesteinPlan getBluesteinPlan(final int n) {
+		return bluesteinPlans.get(n);
+	}
+
+	protected static RealPlan getRealPlan(final int n) {
+		return realPlans.get(n);
+	}
+
+	protected static double[] getOddScratch(final int size) {
+		return getScratch(oddScratch, size);
+	}
+
+	protected static float[] getOddScratchF(final int size) {
+		float[] scratch = oddScratchF.get();
+		if (scratch == null || scratch.length < size) {
+			scratch = new float[size];
+			oddScratchF.set(scratch);
+		}
+		return scratch;
+	}
+
+	private static double[] getScratch(final ThreadLocal<double[]> local, final int size) {
+		double[] scratch = local.get();
+		if (scratch == null || scratch.length < size) {
+			scratch = new double[size];
+			local.set(scratch);
+		}
+		return scratch;
+	}
+
+	protected static float[] toFloat(final double[] values) {
+		final float[] result = new float[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = (float)values[i];
+		return result;
+	}
+
+	/**
+	 * Transforms interleaved complex data in place.
+	 *
+	 * @param data the interleaved complex values
+	 * @param offset the index of the real part of the first value
+	 * @param n the number of complex values
+	 * @param inverse whether to compute the (normalized) inverse transform
+	 */
+	public static void transform(final double[] data, final int offset, final int n, final boolean inverse) {
+		if (n < 1)
+			throw new IllegalArgumentException("Invalid transform size: " + n);
+		if (isPowerOfTwo(n))
+			radix2(data, offset, n, inverse);
+		else
+			bluestein(data, offset, n, inverse);
+	}
+
+	protected static void radix2(final double[] data, final int offset, final int n, final boolean inverse) {
+		final Plan plan = getPlan(n);
+
+		final int[] swaps = plan.swaps;
+		for (int i = 0; i < swaps.length; i += 2) {
+			final int a = offset + 2 * swaps[i], b = offset + 2 * swaps[i + 1];
+			double tmp = data[a];
+			data[a] = data[b];
+			data[b] = tmp;
+			tmp = data[a + 1];
+			data[a + 1] = data[b + 1];
+			data[b + 1] = tmp;
+		}
+
+		// Cooley-Tukey butterflies
+		final double[] cos = plan.cos, sin = plan.sin;
+		final double sign = inverse ? 1 : -1;
+		for (int half = 1, stride = n / 2; half < n; half *= 2, stride /= 2) {
+			for (int start = 0; start < n; start += 2 * half) {
+				for (int k = 0; k < half; k++) {
+					final double c = cos[k * stride], s = sign * sin[k * stride];
+					final int i = offset + 2 * (start + k), j = i + 2 * half;
+					final double re = c * data[j] - s * data[j + 1];
+					final double im = c * data[j + 1] + s * data[j];
+					data[j] = data[i] - re;
+					data[j + 1] = data[i + 1] - im;
+					data[i] += re;
+					data[i + 1] += im;
+				}
+			}
+		}
+
+		if (inverse) {
+			final double factor = 1.0 / n;
+			for (int i = offset; i < offset + 2 * n; i++)
+				data[i] *= factor;
+		}
+	}
+
+	protected static void bluestein(final double[] data, final int offset, final int n, final boolean inverse) {
+		final BluesteinPlan plan = getBluesteinPlan(n);
+		final int m = plan.paddedSize;
+		final double[] cos = plan.cos, sin = plan.sin, kernel = plan.kernel;
+		final double[] work = plan.scratch.get();
+
+		// the inverse transform is the conjugate of the forward transform of the conjugate
+		final double sign = inverse ? -1 : 1;
+
+		// multiply by the chirp exp(-iπk²/n)
+		for (int k = 0; k < n; k++) {
+			final double re = data[offset + 2 * k], im = sign * data[offset + 2 * k + 1];
+			work[2 * k] = re * cos[k] + im * sin[k];
+			work[2 * k + 1] = im * cos[k] - re * sin[k];
+		}
+		for (int i = 2 * n; i < 2 * m; i++)
+			work[i] = 0;
+
+		// convolve with the conjugate chirp
+		radix2(work, 0, m, false);
+		for (int k = 0; k < m; k++) {
+			final double re = work[2 * k], im = work[2 * k + 1];
+			work[2 * k] = re * kernel[2 * k] - im * kernel[2 * k + 1];
+			work[2 * k + 1] = re * kernel[2 * k + 1] + im * kernel[2 * k];
+		}
+		radix2(work, 0, m, true);
+
+		// multiply by the chirp again
+		final double factor = inverse ? 1.0 / n : 1;
+		for (int k = 0; k < n; k++) {
+			final double re = work[2 * k], im = work[2 * k + 1];
+			data[offset + 2 * k] = factor * (re * cos[k] + im * sin[k]);
+			data[offset + 2 * k + 1] = factor * sign * (im * cos[k] - re * sin[k]);
+		}
+	}
+
+	/**
+	 * Transforms real data in place into its non-redundant half spectrum.
+	 * <p>
+	 * On entry, <code>data[offset]</code> to <code>data[offset + n - 1]</code>
+	 * hold the real values. On return, the same array holds the n/2+1 complex
+	 * values X<sub>0</sub> to X<sub>n/2</sub> (interleaved); the remaining ones
+	 * are their complex conjugates, X<sub>n-k</sub> = X<sub>k</sub>*. The array
+	 * must therefore have room for n + 2 values from the offset.
+	 * </p>
+	 *
+	 * @param data the real values, replaced by the half spectrum
+	 * @param offset the index of the first value
+	 * @param n the number of real values
+	 */
+	public static void realTransform(final double[] data, final int offset, final int n) {
+		if ((n & 1) != 0) {
+			final double[] work = getOddScratch(2 * n);
+			for (int k = 0; k < n; k++) {
+				work[2 * k] = data[offset + k];
+				work[2 * k + 1] = 0;
+			}
+			transform(work, 0, n, false);
+			System.arraycopy(work, 0, data, offset, n + 1);
+			return;
+		}
+
+		// the even and odd samples are the real and imaginary parts of n/2 values
+		final int h = n / 2;
+		transform(data, offset, h, false);
+
+		final double re0 = data[offset], im0 = data[offset + 1];
+		data[offset] = re0 + im0;
+		data[offset + 1] = 0;
+		data[offset + n] = re0 - im0;
+		data[offset + n + 1] = 0;
+
+		final RealPlan plan = getRealPlan(n);
+		for (int k = 1; 2 * k <= h; k++) {
+			final int i = offset + 2 * k, j = offset + 2 * (h - k);
+			final double a = data[i], b = data[i + 1], c = data[j], d = data[j + 1];
+			// even part E = (Z_k + Z_{h-k}*) / 2, odd part O = (Z_k - Z_{h-k}*) / 2i
+			final double eRe = (a + c) / 2, eIm = (b - d) / 2;
+			final double oRe = (b + d) / 2, oIm = (c - a) / 2;
+			// W O with W = exp(-2πik/n)
+			final double cos = plan.cos[k], sin = plan.sin[k];
+			final double wRe = cos * oRe + sin * oIm, wIm = cos * oIm - sin * oRe;
+			// X_k = E + W O, X_{h-k} = (E - W O)*
+			if (i != j) {
+				data[j] = eRe - wRe;
+				data[j + 1] = wIm - eIm;
+			}
+			data[i] = eRe + wRe;
+			data[i + 1] = eIm + wIm;
+		}
+	}
+
+	/**
+	 * Inverts {@link #realTransform(double[], int, int)} in place.
+	 *
+	 * @param data the n/2+1 interleaved complex values of the half spectrum,
+	 *          replaced by the n real values
+	 * @param offset the index of the first value
+	 * @param n the number of real values
 	 */
+	public static void realInverseTransform(final double[] data, final int offset, final int n) {
+		if ((n & 1) != 0) {
+			final double[] work = getOddScratch(2 * n);
+			System.arraycopy(data, offset, work, 0, n + 1);
+			for (int k = (n + 1) / 2; k < n; k++) {
+				work[2 * k] = work[2 * (n - k)];
+				work[2 * k + 1] = -work[2 * (n - k) + 1];
+			}
+			transform(work, 0, n, true);
+			for (int k = 0; k < n; k++)
+				data[offset + k] = work[2 * k];
+			return;
+		}
+
+		final int h = n / 2;
+		final double x0 = data[offset], xh = data[offset + n];
+		data[offset] = (x0 + xh) / 2;
+		data[offset + 1] = (x0 - xh) / 2;
+
+		final RealPlan plan = getRealPlan(n);
+		for (int k = 1; 2 * k <= h; k++) {
+			final int i = offset + 2 * k, j = offset + 2 * (h - k);
+			final double a = data[i], b = data[i + 1], c = data[j], d = data[j + 1];
+			// E = (X_k + X_{h-k}*) / 2, W O = (X_k - X_{h-k}*) / 2
+			final double eRe = (a + c) / 2, eIm = (b - d) / 2;
+			final double wRe = (a - c) / 2, wIm = (b + d) / 2;
+			// O = W* (W O)
+			final double cos = plan.cos[k], sin = plan.sin[k];
+			final double oRe = cos * wRe - sin * wIm, oIm = cos * wIm + sin * wRe;
+			// Z_k = E + i O, Z_{h-k} = E* + i O*
+			if (i != j) {
+				data[j] = eRe + oIm;
+				data[j + 1] = oRe - eIm;
+			}
+			data[i] = eRe - oIm;
+			data[i + 1] = eIm + oRe;
+		}
+
+		transform(data, offset, h, true);
+	}
+
+	/**
+	 * Transforms interleaved complex data in place, in single precision.
+	 *
+	 * @see #transform(double[], int, int, boolean)
+	 */
+	public static void transform(final float[] data, final int offset, final int n, final boolean inverse) {
+		if (n < 1)
+			throw new IllegalArgumentException("Invalid transform size: " + n);
+		if (isPowerOfTwo(n))
+			radix2(data, offset, n, inverse);
+		else
+			bluestein(data, offset, n, inverse);
+	}
+
+	protected static void radix2(final float[] data, final int offset, final int n, final boolean inverse) {
+		final Plan plan = getPlan(n);
+		if (plan.sinF == null)
+			plan.makeFloatTables();
+
+		final int[] swaps = plan.swaps;
+		for (int i = 0; i < swaps.length; i += 2) {
+			final int a = offset + 2 * swaps[i], b = offset + 2 * swaps[i + 1];
+			float tmp = data[a];
+			data[a] = data[b];
+			data[b] = tmp;
+			tmp = data[a + 1];
+			data[a + 1] = data[b + 1];
+			data[b + 1] = tmp;
+		}
+
+		// Cooley-Tukey butterflies
+		final float[] sin = plan.sinF, cos = plan.cosF;
+		final float sign = inverse ? 1 : -1;
+		for (int half = 1, stride = n / 2; half < n; half *= 2, stride /= 2) {
+			for (int start = 0; start < n; start += 2 * half) {
+				for (int k = 0; k < half; k++) {
+					final float c = cos[k * stride], s = sign * sin[k * stride];
+					final int i = offset + 2 * (start + k), j = i + 2 * half;
+					final float re = c * data[j] - s * data[j + 1];
+					final float im = c * data[j + 1] + s * data[j];
+					data[j] = data[i] - re;
+					data[j + 1] = data[i + 1] - im;
+					data[i] += re;
+					data[i + 1] += im;
+				}
+			}
+		}
+
+		if (inverse) {
+			final float factor = 1.0f / n;
+			for (int i = offset; i < offset + 2 * n; i++)
+				data[i] *= factor;
+		}
+	}
+
+	protected static void bluestein(final float[] data, final int offset, final int n, final boolean inverse) {
+		final BluesteinPlan plan = getBluesteinPlan(n);
+		if (plan.kernelF == null)
+			plan.makeFloatTables();
+		final int m = plan.paddedSize;
+		final float[] kernel = plan.kernelF, cos = plan.cosF, sin = plan.sinF;
+		final float[] work = plan.scratchF.get();
+
+		// the inverse transform is the conjugate of the forward transform of the conjugate
+		final float sign = inverse ? -1 : 1;
+
+		// multiply by the chirp exp(-iπk²/n)
+		for (int k = 0; k < n; k++) {
+			final float re = data[offset + 2 * k], im = sign * data[offset + 2 * k + 1];
+			work[2 * k] = re * cos[k] + im * sin[k];
+			work[2 * k + 1] = im * cos[k] - re * sin[k];
+		}
+		for (int i = 2 * n; i < 2 * m; i++)
+			work[i] = 0;
+
+		// convolve with the conjugate chirp
+		radix2(work, 0, m, false);
+		for (int k = 0; k < m; k++) {
+			final float re = work[2 * k], im = work[2 * k + 1];
+			work[2 * k] = re * kernel[2 * k] - im * kernel[2 * k + 1];
+			work[2 * k + 1] = re * kernel[2 * k + 1] + im * kernel[2 * k];
+		}
+		radix2(work, 0, m, true);
+
+		// multiply by the chirp again
+		final float factor = inverse ? 1.0f / n : 1;
+		for (int k = 0; k < n; k++) {
+			final float re = work[2 * k], im = work[2 * k + 1];
+			data[offset + 2 * k] = factor * (re * cos[k] + im * sin[k]);
+			data[offset + 2 * k + 1] = factor * sign * (im * cos[k] - re * sin[k]);
+		}
+	}
+
+	/**
+	 * Transforms real data in place into its half spectrum, in single precision.
+	 *
+	 * @see #realTransform(double[], int, int)
+	 */
+	public static void realTransform(final float[] data, final int offset, final int n) {
+		if ((n & 1) != 0) {
+			final float[] work = getOddScratchF(2 * n);
+			for (int k = 0; k < n; k++) {
+				work[2 * k] = data[offset + k];
+				work[2 * k + 1] = 0;
+			}
+			transform(work, 0, n, false);
+			System.arraycopy(work, 0, data, offset, n + 1);
+			return;
+		}
+
+		// the even and odd samples are the real and imaginary parts of n/2 values
+		final int h = n / 2;
+		transform(data, offset, h, false);
+
+		final float re0 = data[offset], im0 = data[offset + 1];
+		data[offset] = re0 + im0;
+		data[offset + 1] = 0;
+		data[offset + n] = re0 - im0;
+		data[offset + n + 1] = 0;
+
+		final RealPlan plan = getRealPlan(n);
+		if (plan.sinF == null)
+			plan.makeFloatTables();
+		final float[] cosF = plan.cosF, sinF = plan.sinF;
+		for (int k = 1; 2 * k <= h; k++) {
+			final int i = offset + 2 * k, j = offset + 2 * (h - k);
+			final float a = data[i], b = data[i + 1], c = data[j], d = data[j + 1];
+			// even part E = (Z_k + Z_{h-k}*) / 2, odd part O = (Z_k - Z_{h-k}*) / 2i
+			final float eRe = (a + c) / 2, eIm = (b - d) / 2;
+			final float oRe = (b + d) / 2, oIm = (c - a) / 2;
+			// W O with W = exp(-2πik/n)
+			final float cos = cosF[k], sin = sinF[k];
+			final float wRe = cos * oRe + sin * oIm, wIm = cos * oIm - sin * oRe;
+			// X_k = E + W O, X_{h-k} = (E - W O)*
+			if (i != j) {
+				data[j] = eRe - wRe;
+				data[j + 1] = wIm - eIm;
+			}
+			data[i] = eRe + wRe;
+			data[i + 1] = eIm + wIm;
+		}
+	}
+
+	/**
+	 * Inverts {@link #realTransform(float[], int, int)} in place.
+	 */
+	public static void realInverseTransform(final float[] data, final int offset, final int n) {
+		if ((n & 1) != 0) {
+			final float[] work = getOddScratchF(2 * n);
+			System.arraycopy(data, offset, work, 0, n + 1);
+			for (int k = (n + 1) / 2; k < n; k++) {
+				work[2 * k] = work[2 * (n - k)];
+				work[2 * k + 1] = -work[2 * (n - k) + 1];
+			}
+			transform(work, 0, n, true);
+			for (int k = 0; k < n; k++)
+				data[offset + k] = work[2 * k];
+			return;
+		}
+
+		final int h = n / 2;
+		final float x0 = data[offset], xh = data[offset + n];
+		data[offset] = (x0 + xh) / 2;
+		data[offset + 1] = (x0 - xh) / 2;
+
+		final RealPlan plan = getRealPlan(n);
+		if (plan.sinF == null)
+			plan.makeFloatTables();
+		final float[] cosF = plan.cosF, sinF = plan.sinF;
+		for (int k = 1; 2 * k <= h; k++) {
+			final int i = offset + 2 * k, j = offset + 2 * (h - k);
+			final float a = data[i], b = data[i + 1], c = data[j], d = data[j + 1];
+			// E = (X_k + X_{h-k}*) / 2, W O = (X_k - X_{h-k}*) / 2
+			final float eRe = (a + c) / 2, eIm = (b - d) / 2;
+			final float wRe = (a - c) / 2, wIm = (b + d) / 2;
+			// O = W* (W O)
+			final float cos = cosF[k], sin = sinF[k];
+			final float oRe = cos * wRe - sin * wIm, oIm = cos * wIm + sin * wRe;
+			// Z_k = E + i O, Z_{h-k} = E* + i O*
+			if (i != j) {
+				data[j] = eRe + oIm;
+				data[j + 1] = oRe - eIm;
+			}
+			data[i] = eRe - oIm;
+			data[i + 1] = eIm + oRe;
+		}
+
+		transform(data, offset, h, true);
+	}
+
+	public static void transform(final double[] data) {
+		transform(data, 0, data.length / 2, false);
+	}
+
+	public static void inverseTransform(final double[] data) {
+		transform(data, 0, data.length / 2, true);
+	}
+
+	// compute the FFT of x[]
 	public double[][] fft(double[][] x) {
-		int n = x.length;
-
-		if (n == 1)
-			return new double[][] { x[0] };
-
-		// Cooley-Tukey FFT
-		if ((n & 1) != 0)
-			throw new RuntimeException("n is not a power of 2");
-
-		// fft of even terms
-		double[][] even = new double[n/2][];
-		for (int k = 0; k < n/2; k++)
-			even[k] = x[2*k];
-		double[][] q = fft(even);
-
-		// fft of odd terms
-		double[][] odd  = even;  // reuse the array
-		for (int k = 0; k < n/2; k++)
-			odd[k] = x[2*k + 1];
-		double[][] r = fft(odd);
-
-		// combine
-		double[][] y = new double[n][2];
-		for (int k = 0; k < n/2; k++) {
-			double kth = -2 * k * Math.PI / n;
-			double c = Math.cos(kth), s = Math.sin(kth);
-			double kr0 = c * r[k][0] - s * r[k][1];
-			double kr1 = c * r[k][1] + s * r[k][0];
-			y[k][0] = q[k][0] + kr0;
-			y[k][1] = q[k][1] + kr1;
-			y[k + n/2][0] = q[k][0] - kr0;
-			y[k + n/2][1] = q[k][1] - kr1;
-		}
-		return y;
+		double[] data = toInterleaved(x);
+		transform(data, 0, x.length, false);
+		return fromInterleaved(data);
 	}
 
 	public double[][] conjugate(double[][] x) {
@@ -63,7 +724,9 @@ public class FFT {
 
 	// compute the inverse FFT of x[]
 	public double[][] ifft(double[][] x) {
-		return divide(conjugate(fft(conjugate(x))), x.length);
+		double[] data = toInterleaved(x);
+		transform(data, 0, x.length, true);
+		return fromInterleaved(data);
 	}
 
 	public void print(double[][] values) {
@@ -81,4 +744,22 @@ public class FFT {
 		}
 		return r;
 	}
+
+	protected static double[] toInterleaved(double[][] x) {
+		double[] result = new double[2 * x.length];
+		for (int i = 0; i < x.length; i++) {
+			result[2 * i] = x[i][0];
+			result[2 * i + 1] = x[i][1];
+		}
+		return result;
+	}
+
+	protected static double[][] fromInterleaved(double[] data) {
+		double[][] result = new double[data.length / 2][2];
+		for (int i = 0; i < result.length; i++) {
+			result[i][0] = data[2 * i];
+			result[i][1] = data[2 * i + 1];
+		}
+		return result;
+	}
 }
@@ -0,0 +1,374 @@
+package sc.fiji.timelapse;
+
+import ij.process.FloatProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * Measures how crisp each pixel of a z-slice is.
+ * <p>
+ * The {@link Gaussian_Stack_Focuser} weights every z-slice by such a measure.
+ * The measures work on tiles: they get the pixel values of a tile plus a halo
+ * of {@link #getHalo()} pixels (less where the image ends), and compute the
+ * weights of the pixels inside the tile only. As long as the weight of a
+ * pixel depends only on pixels within the halo, and the border of the padded
+ * region is treated like the image border (edge pixels are repeated or
+ * mirrored, windows are clipped), the weights are identical to those
+ * computed on the whole image.
+ * </p>
+ * <p>
+ * Measures must be stateless, as they are used from several threads at once;
+ * temporary buffers are obtained from the {@link Scratch} passed in, which
+ * belongs to the calling thread.
+ * </p>
+ */
+public abstract class FocusMeasure {
+	public final static String[] NAMES = {
+		"Difference to Gaussian blur", "Variance of Laplacian", "Tenengrad", "Local variance",
+		"Difference to recursive Gaussian blur"
+	};
+
+	/**
+	 * Creates one of the built-in measures by name.
+	 *
+	 * @param name one of {@link #NAMES}
+	 * @param radius the radius of the Gaussian blur, or of the window
+	 */
+	public static FocusMeasure create(final String name, final double radius) {
+		if (name.equals(NAMES[0]))
+			return new GaussianDifference(radius);
+		if (name.equals(NAMES[4]))
+			return new RecursiveGaussianDifference(radius);
+		final int windowRadius = Math.max(1, (int)Math.round(radius));
+		if (name.equals(NAMES[1]))
+			return new LaplacianVariance(windowRadius);
+		if (name.equals(NAMES[2]))
+			return new Tenengrad(windowRadius);
+		if (name.equals(NAMES[3]))
+			return new LocalVariance(windowRadius);
+		throw new IllegalArgumentException("Unknown focus measure: " + name);
+	}
+
+	/**
+	 * @return whether the radius of the named measure is that of a Gaussian
+	 *         blur (rather than that of a window)
+	 */
+	public static boolean isGaussian(final String name) {
+		return name.equals(NAMES[0]) || name.equals(NAMES[4]);
+	}
+
+	public abstract String getName();
+
+	/**
+	 * @return how far (in pixels) the weight of a pixel depends on its
+	 *         neighbourhood
+	 */
+	public abstract int getHalo();
+
+	/**
+	 * @return whether the measure can be computed tile by tile; otherwise the
+	 *         tile must cover the whole image
+	 */
+	public boolean supportsTiles() {
+		return true;
+	}
+
+	/**
+	 * Computes the weights of the pixels in a tile.
+	 *
+	 * @param values the pixel values of the padded region, row by row
+	 * @param padded the padded region (tile plus halo, clipped to the image)
+	 * @param tile the tile, in the same coordinates as the padded region
+	 * @param weights receives the weights of the tile, row by row
+	 * @param scratch the calling thread's temporary buffers
+	 */
+	public abstract void computeWeights(float[] values, Rectangle padded, Rectangle tile, float[] weights, Scratch scratch);
+
+	/**
+	 * Temporary buffers, reused from tile to tile by one thread.
+	 */
+	public static class Scratch {
+		private double[][] doubles = new double[4][];
+		private FloatProcessor processor;
+		private int threadCount = 1;
+
+		/**
+		 * @return a buffer of at least the given size; its content is undefined
+		 */
+		public double[] getDoubles(final int index, final int size) {
+			if (doubles[index] == null || doubles[index].length < size)
+				doubles[index] = new double[size];
+			return doubles[index];
+		}
+
+		/**
+		 * @return a float image of the given size; its content is undefined
+		 */
+		public FloatProcessor getProcessor(final int width, final int height) {
+			if (processor == null || processor.getWidth() != width || processor.getHeight() != height)
+				processor = new FloatProcessor(width, height);
+			return processor;
+		}
+
+		/**
+		 * @return how many threads a measure may use; this is more than one only
+		 *         if the tile is the only one of the image
+		 */
+		public int getThreadCount() {
+			return threadCount;
+		}
+
+		public void setThreadCount(final int threadCount) {
+			this.threadCount = threadCount;
+		}
+	}
+
+	/**
+	 * The absolute difference to a Gaussian blurred version of the image.
+	 * <p>
+	 * The image is blurred by the convolution of {@link GaussianSmoother}
+	 * (the kernel truncated at two sigmas, as in <code>Phase_Map</code>), and
+	 * mirrored at its borders. The kernel never reaches beyond the halo, so
+	 * the measure can be computed in tiles for any radius.
+	 * </p>
+	 */
+	public static class GaussianDifference extends FocusMeasure {
+		/** the accuracy of ImageJ's GaussianBlur, which this measure used to blur with; it sizes the halo */
+		private final static double ACCURACY = 0.01;
+
+		private final double sigma;
+		private final GaussianSmoother smoother;
+
+		public GaussianDifference(final double radius) {
+			sigma = 0.4 * radius;
+			smoother = new GaussianSmoother(sigma);
+		}
+
+		@Override
+		public String getName() {
+			return NAMES[0];
+		}
+
+		@Override
+		public int getHalo() {
+			return (int)Math.ceil(sigma * Math.sqrt(-2 * Math.log(ACCURACY))) + 1;
+		}
+
+		@Override
+		public void computeWeights(final float[] values, final Rectangle padded, final Rectangle tile, final float[] weights, final Scratch scratch) {
+			final FloatProcessor blurred = scratch.getProcessor(padded.width, padded.height);
+			final float[] pixels = (float[])blurred.getPixels();
+			System.arraycopy(values, 0, pixels, 0, padded.width * padded.height);
+			smoother.convolve(blurred, scratch.getThreadCount());
+			for (int y = 0, j = 0; y < tile.height; y++)
+				for (int x = 0, i = (tile.y + y) * padded.width + tile.x; x < tile.width; x++, i++, j++)
+					weights[j] = Math.abs(pixels[i] - values[i]);
+		}
+	}
+
+	/**
+	 * The absolute difference to a Gaussian blurred version of the image,
+	 * blurred by the recursive filter of {@link GaussianSmoother}.
+	 * <p>
+	 * The cost does not depend on the radius, which makes large radii much
+	 * faster than with {@link GaussianDifference}. But the recursive filter
+	 * reaches across the whole image, so the measure cannot be computed in
+	 * tiles; instead, the rows and columns of the whole image are blurred in
+	 * parallel. The image is mirrored at its borders.
+	 * </p>
+	 */
+	public static class RecursiveGaussianDifference extends FocusMeasure {
+		private final GaussianSmoother smoother;
+
+		public RecursiveGaussianDifference(final double radius) {
+			smoother = new GaussianSmoother(0.4 * radius, true);
+		}
+
+		@Override
+		public String getName() {
+			return NAMES[4];
+		}
+
+		@Override
+		public int getHalo() {
+			return 0;
+		}
+
+		@Override
+		public boolean supportsTiles() {
+			return false;
+		}
+
+		@Override
+		public void computeWeights(final float[] values, final Rectangle padded, final Rectangle tile, final float[] weights, final Scratch scratch) {
+			final FloatProcessor blurred = scratch.getProcessor(padded.width, padded.height);
+			final float[] pixels = (float[])blurred.getPixels();
+			System.arraycopy(values, 0, pixels, 0, padded.width * padded.height);
+			smoother.smooth(blurred, scratch.getThreadCount());
+			for (int y = 0, j = 0; y < tile.height; y++)
+				for (int x = 0, i = (tile.y + y) * padded.width + tile.x; x < tile.width; x++, i++, j++)
+					weights[j] = Math.abs(pixels[i] - values[i]);
+		}
+	}
+
+	/**
+	 * The local variance of the Laplacian (4-neighbourhood).
+	 */
+	public static class LaplacianVariance extends FocusMeasure {
+		private final int windowRadius;
+
+		public LaplacianVariance(final int windowRadius) {
+			this.windowRadius = windowRadius;
+		}
+
+		@Override
+		public String getName() {
+			return NAMES[1];
+		}
+
+		@Override
+		public int getHalo() {
+			return windowRadius + 1;
+		}
+
+		@Override
+		public void computeWeights(final float[] values, final Rectangle padded, final Rectangle tile, final float[] weights, final Scratch scratch) {
+			final int w = padded.width, h = padded.height;
+			final double[] laplacian = scratch.getDoubles(0, w * h);
+			for (int y = 0; y < h; y++) {
+				final int up = Math.max(0, y - 1) * w, down = Math.min(h - 1, y + 1) * w;
+				for (int x = 0; x < w; x++) {
+					final int left = Math.max(0, x - 1), right = Math.min(w - 1, x + 1);
+					laplacian[y * w + x] = 4.0 * values[y * w + x]
+						- values[up + x] - values[down + x] - values[y * w + left] - values[y * w + right];
+				}
+			}
+			localVariance(laplacian, w, h, windowRadius, tile, weights, scratch);
+		}
+	}
+
+	/**
+	 * The local mean of the squared Sobel gradient magnitude.
+	 */
+	public static class Tenengrad extends FocusMeasure {
+		private final int windowRadius;
+
+		public Tenengrad(final int windowRadius) {
+			this.windowRadius = windowRadius;
+		}
+
+		@Override
+		public String getName() {
+			return NAMES[2];
+		}
+
+		@Override
+		public int getHalo() {
+			return windowRadius + 1;
+		}
+
+		@Override
+		public void computeWeights(final float[] values, final Rectangle padded, final Rectangle tile, final float[] weights, final Scratch scratch) {
+			final int w = padded.width, h = padded.height;
+			final double[] squared = scratch.getDoubles(0, w * h);
+			for (int y = 0; y < h; y++) {
+				final int up = Math.max(0, y - 1) * w, row = y * w, down = Math.min(h - 1, y + 1) * w;
+				for (int x = 0; x < w; x++) {
+					final int left = Math.max(0, x - 1), right = Math.min(w - 1, x + 1);
+					final double gx = values[up + right] + 2.0 * values[row + right] + values[down + right]
+						- values[up + left] - 2.0 * values[row + left] - values[down + left];
+					final double gy = values[down + left] + 2.0 * values[down + x] + values[down + right]
+						- values[up + left] - 2.0 * values[up + x] - values[up + right];
+					squared[row + x] = gx * gx + gy * gy;
+				}
+			}
+			final double[] mean = scratch.getDoubles(1, w * h);
+			boxMean(squared, w, h, windowRadius, tile, mean, scratch.getDoubles(2, w * h));
+			for (int y = 0, j = 0; y < tile.height; y++)
+				for (int x = 0, i = (tile.y + y) * w + tile.x; x < tile.width; x++, i++, j++)
+					weights[j] = (float)mean[i];
+		}
+	}
+
+	/**
+	 * The local variance of the pixel values.
+	 */
+	public static class LocalVariance extends FocusMeasure {
+		private final int windowRadius;
+
+		public LocalVariance(final int windowRadius) {
+			this.windowRadius = windowRadius;
+		}
+
+		@Override
+		public String getName() {
+			return NAMES[3];
+		}
+
+		@Override
+		public int getHalo() {
+			return windowRadius;
+		}
+
+		@Override
+		public void computeWeights(final float[] values, final Rectangle padded, final Rectangle tile, final float[] weights, final Scratch scratch) {
+			final int size = padded.width * padded.height;
+			final double[] converted = scratch.getDoubles(0, size);
+			for (int i = 0; i < size; i++)
+				converted[i] = values[i];
+			localVariance(converted, padded.width, padded.height, windowRadius, tile, weights, scratch);
+		}
+	}
+
+	/**
+	 * Computes the variance in a (2r+1)x(2r+1) window (clipped to the region)
+	 * around every pixel of the tile. Uses the scratch buffers 1 to 3.
+	 */
+	protected static void localVariance(final double[] values, final int width, final int height, final int r,
+			final Rectangle tile, final float[] weights, final Scratch scratch) {
+		final int size = width * height;
+		final double[] mean = scratch.getDoubles(1, size), temp = scratch.getDoubles(2, size);
+		boxMean(values, width, height, r, tile, mean, temp);
+		final double[] squares = scratch.getDoubles(3, size);
+		for (int i = 0; i < size; i++)
+			squares[i] = values[i] * values[i];
+		final double[] meanSquare = squares;
+		boxMean(squares, width, height, r, tile, meanSquare, temp);
+		for (int y = 0, j = 0; y < tile.height; y++)
+			for (int x = 0, i = (tile.y + y) * width + tile.x; x < tile.width; x++, i++, j++)
+				weights[j] = (float)Math.max(0, meanSquare[i] - mean[i] * mean[i]);
+	}
+
+	/**
+	 * Computes the mean in a (2r+1)x(2r+1) window (clipped to the region)
+	 * around every pixel of the tile.
+	 * <p>
+	 * The windows are summed directly (rather than with running sums), so that
+	 * the result does not depend on where the region starts. The result may
+	 * be written to the source array, as only the tile is written.
+	 * </p>
+	 */
+	protected static void boxMean(final double[] values, final int width, final int height, final int r,
+			final Rectangle tile, final double[] result, final double[] temp) {
+		// horizontal means of the rows that the tile's windows touch
+		final int y0 = Math.max(0, tile.y - r), y1 = Math.min(height, tile.y + tile.height + r);
+		for (int y = y0; y < y1; y++)
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				final int from = Math.max(0, x - r), to = Math.min(width - 1, x + r);
+				double sum = 0;
+				for (int k = from; k <= to; k++)
+					sum += values[y * width + k];
+				temp[y * width + x] = sum / (to - from + 1);
+			}
+		// vertical means thereof
+		for (int y = tile.y; y < tile.y + tile.height; y++) {
+			final int from = Math.max(0, y - r), to = Math.min(height - 1, y + r);
+			for (int x = tile.x; x < tile.x + tile.width; x++) {
+				double sum = 0;
+				for (int k = from; k <= to; k++)
+					sum += temp[k * width + x];
+				result[y * width + x] = sum / (to - from + 1);
+			}
+		}
+	}
+}
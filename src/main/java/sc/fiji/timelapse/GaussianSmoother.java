@@ -0,0 +1,422 @@
+package sc.fiji.timelapse;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Smoothes signals and images with a Gaussian.
+ * <p>
+ * Two paths are offered: the exact convolution with a kernel truncated at
+ * two sigmas (the original <code>Phase_Map.Gauss1D</code>), whose cost grows
+ * with sigma, and the recursive filter by Young and van Vliet, which needs a
+ * constant number of operations per sample: a third-order causal pass
+ * followed by the same anti-causal pass. The poles are those of van Vliet,
+ * Young and Verbeek ("Recursive Gaussian derivative filters", ICPR 1998),
+ * scaled so that the variance of the impulse response is exactly sigma^2.
+ * The recursive filter is an approximation (the impulse response deviates
+ * from the Gaussian by a few percent of its peak), and is only used for
+ * sigma >= 0.5; below that, the convolution is used.
+ * </p>
+ * <p>
+ * Both paths mirror the signal at its ends the same way: the left end is
+ * mirrored about x = 0.5 (the sample -1 is the sample 2), the right end about
+ * x = n - 0.5 (the sample n is the sample n - 1). This is what
+ * <code>Gauss1D</code> did, so that the convolution reproduces its results
+ * exactly.
+ * </p>
+ * <p>
+ * A smoother holds no per-signal state; the temporary buffers are kept per
+ * thread and reused, so a single smoother can be shared by all the threads
+ * smoothing the rows or columns of an image.
+ * </p>
+ */
+public class GaussianSmoother {
+	private final static int BLOCK_SIZE = 16;
+	/** below this, the recursive filter approximates the Gaussian too poorly */
+	private final static double MIN_RECURSIVE_SIGMA = 0.5;
+	/** the poles for sigma = 2 (L2-optimal): 1.40098 +/- 1.00236i and 1.85132 */
+	private final static double POLE_MODULUS = Math.hypot(1.40098, 1.00236),
+		POLE_ANGLE = Math.atan2(1.00236, 1.40098), REAL_POLE = 1.85132;
+
+	private final double sigma;
+	private final int radius;
+	private final double[] kernel;
+	private final boolean recursive;
+	/** the gain and the feedback coefficients of the recursive filter */
+	private final double b, b1, b2, b3;
+	/** how far the signal is extended by mirroring for the recursive filter */
+	private final int extension;
+
+	private final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>();
+	private final ThreadLocal<float[]> scratchF = new ThreadLocal<float[]>();
+
+	/**
+	 * Creates a smoother convolving with the truncated kernel.
+	 */
+	public GaussianSmoother(final double sigma) {
+		this(sigma, false);
+	}
+
+	/**
+	 * Creates a smoother.
+	 *
+	 * @param sigma the standard deviation of the Gaussian, in samples
+	 * @param recursive whether to use the recursive filter (if sigma is large
+	 *          enough) instead of the convolution
+	 */
+	public GaussianSmoother(final double sigma, final boolean recursive) {
+		this.sigma = sigma;
+		radius = (int)Math.ceil(sigma * 2);
+		kernel = new double[1 + 2 * radius];
+		double total = 0;
+		for (int i = -radius; i <= radius; i++) {
+			kernel[i + radius] = Math.exp(-0.5 * i * i / sigma / sigma);
+			total += kernel[i + radius];
+		}
+		for (int i = 0; i < kernel.length; i++) {
+			kernel[i] /= total;
+		}
+
+		this.recursive = recursive && sigma >= MIN_RECURSIVE_SIGMA;
+		if (this.recursive) {
+			// scale the poles so that the variance matches
+			double low = 0.01, high = Math.max(1, sigma);
+			while (getVariance(high) < sigma * sigma)
+				high *= 2;
+			for (int i = 0; i < 64; i++) {
+				final double q = (low + high) / 2;
+				if (getVariance(q) < sigma * sigma)
+					low = q;
+				else
+					high = q;
+			}
+			final double q = (low + high) / 2;
+			final double modulus = Math.pow(POLE_MODULUS, 1 / q), angle = POLE_ANGLE / q;
+			final double realPole = Math.pow(REAL_POLE, 1 / q);
+			final double product = modulus * modulus * realPole;
+			b1 = (modulus * modulus + 2 * modulus * Math.cos(angle) * realPole) / product;
+			b2 = -(2 * modulus * Math.cos(angle) + realPole) / product;
+			b3 = 1 / product;
+			b = 1 - (b1 + b2 + b3);
+			// the impulse response has decayed to well below 1e-3 after 4 sigmas
+			extension = (int)Math.ceil(4 * sigma) + 3;
+		}
+		else {
+			b = b1 = b2 = b3 = 0;
+			extension = 0;
+		}
+	}
+
+	/**
+	 * Computes the variance of the impulse response of the recursive filter
+	 * (both passes) whose poles are those for sigma = 2 scaled by 1/q.
+	 */
+	protected static double getVariance(final double q) {
+		final double modulus = Math.pow(POLE_MODULUS, 1 / q), angle = POLE_ANGLE / q;
+		final double realPole = Math.pow(REAL_POLE, 1 / q);
+		// a causal pole d contributes d / (d - 1)^2; for the complex pair, twice the real part thereof
+		final double re = modulus * Math.cos(angle), im = modulus * Math.sin(angle);
+		final double denomRe = (re - 1) * (re - 1) - im * im, denomIm = 2 * (re - 1) * im;
+		final double pair = 2 * (re * denomRe + im * denomIm) / (denomRe * denomRe + denomIm * denomIm);
+		return 2 * (pair + realPole / ((realPole - 1) * (realPole - 1)));
+	}
+
+	public double getSigma() {
+		return sigma;
+	}
+
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * @return the number of samples a signal needs at least; this is the
+	 *         length of the convolution kernel
+	 */
+	public int getMinimumLength() {
+		return kernel.length;
+	}
+
+	/**
+	 * Smoothes a signal in place.
+	 *
+	 * @param data the array holding the signal
+	 * @param offset the index of the first sample
+	 * @param dataSize the number of samples
+	 */
+	public void smooth(final double[] data, final int offset, final int dataSize) {
+		smooth(data, offset, dataSize, 1);
+	}
+
+	/**
+	 * Smoothes a signal in place.
+	 *
+	 * @param data the array holding the signal
+	 * @param offset the index of the first sample
+	 * @param dataSize the number of samples
+	 */
+	public void smooth(final float[] data, final int offset, final int dataSize) {
+		smooth(data, offset, dataSize, 1);
+	}
+
+	/**
+	 * Smoothes a signal whose samples are <code>step</code> entries apart
+	 * (e.g. the column of an image) in place.
+	 */
+	public void smooth(final double[] data, final int offset, final int dataSize, final int step) {
+		checkLength(dataSize);
+		if (recursive) {
+			final double[] extended = getScratch(dataSize + 2 * extension);
+			for (int i = 0; i < dataSize + 2 * extension; i++)
+				extended[i] = data[offset + mirror(i - extension, dataSize) * step];
+			filter(extended, dataSize + 2 * extension);
+			for (int i = 0; i < dataSize; i++)
+				data[offset + i * step] = extended[extension + i];
+			return;
+		}
+
+		final double[] source = getScratch(dataSize);
+		for (int i = 0; i < dataSize; i++)
+			source[i] = data[offset + i * step];
+		// mirror out-of-bounds strategy
+		for (int i = 0; i < radius; i++) {
+			double value = 0;
+			for (int j = -radius, k = radius + 1 - i; j < -i; j++, k--) {
+				value += source[k] * kernel[radius + j];
+			}
+			for (int j = -i; j <= radius; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+		for (int i = radius; i < dataSize - radius; i++) {
+			double value = 0;
+			for (int j = -radius; j <= radius; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+		// mirror out-of-bounds strategy
+		for (int i = dataSize - radius; i < dataSize; i++) {
+			double value = 0;
+			for (int j = -radius; j < dataSize - i; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			for (int j = dataSize - i, k = dataSize - 1; j <= radius; j++, k--) {
+				value += source[k] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+	}
+
+	/**
+	 * Smoothes a signal whose samples are <code>step</code> entries apart
+	 * (e.g. the column of an image) in place.
+	 * <p>
+	 * The convolution sums in single precision, like <code>Gauss1D</code>
+	 * did; the recursive filter works in double precision.
+	 * </p>
+	 */
+	public void smooth(final float[] data, final int offset, final int dataSize, final int step) {
+		checkLength(dataSize);
+		if (recursive) {
+			final double[] extended = getScratch(dataSize + 2 * extension);
+			for (int i = 0; i < dataSize + 2 * extension; i++)
+				extended[i] = data[offset + mirror(i - extension, dataSize) * step];
+			filter(extended, dataSize + 2 * extension);
+			for (int i = 0; i < dataSize; i++)
+				data[offset + i * step] = (float)extended[extension + i];
+			return;
+		}
+		convolve(data, offset, dataSize, step);
+	}
+
+	/**
+	 * Convolves a signal whose samples are <code>step</code> entries apart
+	 * with the truncated kernel, in place. Signals shorter than the kernel are
+	 * mirrored as often as needed.
+	 */
+	protected void convolve(final float[] data, final int offset, final int dataSize, final int step) {
+		final float[] source = getScratchF(dataSize);
+		for (int i = 0; i < dataSize; i++)
+			source[i] = data[offset + i * step];
+		if (dataSize < kernel.length) {
+			for (int i = 0; i < dataSize; i++) {
+				float value = 0;
+				for (int j = -radius; j <= radius; j++) {
+					value += source[mirror(i + j, dataSize)] * kernel[radius + j];
+				}
+				data[offset + i * step] = value;
+			}
+			return;
+		}
+		// mirror out-of-bounds strategy
+		for (int i = 0; i < radius; i++) {
+			float value = 0;
+			for (int j = -radius, k = radius + 1 - i; j < -i; j++, k--) {
+				value += source[k] * kernel[radius + j];
+			}
+			for (int j = -i; j <= radius; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+		for (int i = radius; i < dataSize - radius; i++) {
+			float value = 0;
+			for (int j = -radius; j <= radius; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+		// mirror out-of-bounds strategy
+		for (int i = dataSize - radius; i < dataSize; i++) {
+			float value = 0;
+			for (int j = -radius; j < dataSize - i; j++) {
+				value += source[i + j] * kernel[radius + j];
+			}
+			for (int j = dataSize - i, k = dataSize - 1; j <= radius; j++, k--) {
+				value += source[k] * kernel[radius + j];
+			}
+			data[offset + i * step] = value;
+		}
+	}
+
+	/**
+	 * Smoothes the rows of an image, spreading them over worker threads.
+	 *
+	 * @param pixels the pixels of the image
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param rowLengths the number of valid samples in each row, or null if all
+	 *          rows are complete; rows shorter than
+	 *          {@link #getMinimumLength()} are left alone
+	 * @param threads the number of threads to use
+	 * @throws IllegalArgumentException if all rows are complete, but shorter
+	 *           than {@link #getMinimumLength()}
+	 */
+	public void smoothRows(final float[] pixels, final int width, final int height, final int[] rowLengths, final int threads) {
+		if (rowLengths == null)
+			checkLength(width);
+		Parallel.forEach(0, (height + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, new Parallel.Body() {
+			@Override
+			public void run(final int block) {
+				final int end = Math.min(height, (block + 1) * BLOCK_SIZE);
+				for (int row = block * BLOCK_SIZE; row < end; row++) {
+					final int length = rowLengths == null ? width : rowLengths[row];
+					if (length >= kernel.length)
+						smooth(pixels, row * width, length, 1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Smoothes the columns of an image, spreading them over worker threads.
+	 * Columns shorter than {@link #getMinimumLength()} are left alone.
+	 */
+	public void smoothColumns(final float[] pixels, final int width, final int height, final int threads) {
+		if (height < kernel.length)
+			return;
+		Parallel.forEach(0, (width + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, new Parallel.Body() {
+			@Override
+			public void run(final int block) {
+				final int end = Math.min(width, (block + 1) * BLOCK_SIZE);
+				for (int column = block * BLOCK_SIZE; column < end; column++)
+					smooth(pixels, column, height, width);
+			}
+		});
+	}
+
+	/**
+	 * Smoothes an image in both directions.
+	 */
+	public void smooth(final FloatProcessor image, final int threads) {
+		final float[] pixels = (float[])image.getPixels();
+		smoothRows(pixels, image.getWidth(), image.getHeight(), null, threads);
+		smoothColumns(pixels, image.getWidth(), image.getHeight(), threads);
+	}
+
+	/**
+	 * Convolves an image in both directions with the truncated kernel, even if
+	 * the smoother is recursive. Unlike {@link #smooth(FloatProcessor, int)},
+	 * this smoothes rows and columns shorter than the kernel, too.
+	 */
+	public void convolve(final FloatProcessor image, final int threads) {
+		final float[] pixels = (float[])image.getPixels();
+		final int width = image.getWidth(), height = image.getHeight();
+		Parallel.forEach(0, (height + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, new Parallel.Body() {
+			@Override
+			public void run(final int block) {
+				final int end = Math.min(height, (block + 1) * BLOCK_SIZE);
+				for (int row = block * BLOCK_SIZE; row < end; row++)
+					convolve(pixels, row * width, width, 1);
+			}
+		});
+		Parallel.forEach(0, (width + BLOCK_SIZE - 1) / BLOCK_SIZE, threads, new Parallel.Body() {
+			@Override
+			public void run(final int block) {
+				final int end = Math.min(width, (block + 1) * BLOCK_SIZE);
+				for (int column = block * BLOCK_SIZE; column < end; column++)
+					convolve(pixels, column, height, width);
+			}
+		});
+	}
+
+	protected void checkLength(final int dataSize) {
+		if (dataSize < kernel.length) {
+			throw new IllegalArgumentException("Too few data");
+		}
+	}
+
+	/**
+	 * Runs the causal and anti-causal passes of the recursive filter. The
+	 * filter starts in the steady state of the first (last) sample; the
+	 * mirrored extension makes up for the difference.
+	 */
+	protected void filter(final double[] values, final int length) {
+		double w1 = values[0], w2 = w1, w3 = w1;
+		for (int i = 0; i < length; i++) {
+			final double w = b * values[i] + b1 * w1 + b2 * w2 + b3 * w3;
+			values[i] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+		w1 = w2 = w3 = values[length - 1];
+		for (int i = length - 1; i >= 0; i--) {
+			final double w = b * values[i] + b1 * w1 + b2 * w2 + b3 * w3;
+			values[i] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+	}
+
+	/**
+	 * Maps an index outside the signal to the sample mirrored there.
+	 */
+	protected static int mirror(int index, final int dataSize) {
+		if (dataSize == 1)
+			return 0;
+		while (index < 0 || index >= dataSize)
+			index = index < 0 ? 1 - index : 2 * dataSize - 1 - index;
+		return index;
+	}
+
+	protected double[] getScratch(final int size) {
+		double[] result = scratch.get();
+		if (result == null || result.length < size) {
+			result = new double[size];
+			scratch.set(result);
+		}
+		return result;
+	}
+
+	protected float[] getScratchF(final int size) {
+		float[] result = scratchF.get();
+		if (result == null || result.length < size) {
+			result = new float[size];
+			scratchF.set(result);
+		}
+		return result;
+	}
+}
@@ -3,90 +3,802 @@ package sc.fiji.timelapse;
 /**
  * Use the difference to a Gaussian blurred version of the image as
  * measure of crispiness, and make a weighted sum of the z-slices.
+ * <p>
+ * Every (frame, channel) pair is focused independently, so the pairs are
+ * processed concurrently. A focuser does not touch any global state (in
+ * particular, it does not toggle the batch mode to silence the blur), so
+ * several focusers may run at the same time, too.
+ * </p>
+ * <p>
+ * Each (frame, channel) pair is processed in tiles small enough to stay in
+ * the cache: for every z-slice in turn, the tile (plus a halo as wide as the
+ * Gaussian kernel) is read directly from the 8-bit, 16-bit or 32-bit pixels,
+ * blurred, weighted and added to running sums. The memory needed therefore
+ * depends neither on the number of slices nor on the image size. As the
+ * halo makes every tile independent of the others, the tiles of a single
+ * large frame are focused in parallel, too, and the result is identical to
+ * focusing the frame as a whole.
+ * </p>
+ * <p>
+ * Other measures of crispiness can be used instead (see
+ * {@link FocusMeasure}). Several measures can be computed at once, for
+ * comparison: they share the pass over the data, and their results become
+ * the z-slices of the output.
+ * </p>
+ * <p>
+ * Optionally, the same pass also yields depth maps (using the weights of the
+ * first focus measure): the weighted mean slice number, the number of the
+ * slice with the highest weight, and the confidence, i.e. the ratio of the
+ * highest weight to the sum of all weights. They are appended as 32-bit
+ * z-slices after the focused images.
+ * </p>
+ * <p>
+ * The focusing can be restricted to an area ROI, or to one ROI per frame:
+ * only the tiles covering the ROI's bounding box (plus their halos) are
+ * processed, so the run time scales with the size of the ROI. Outside the
+ * ROI, the first slice is copied, or zeros are written.
+ * </p>
+ * <p>
+ * Virtual stacks can be focused straight to disk (see
+ * {@link #focus(ImagePlus, File)}): only the z-slices of the current and the
+ * next frame are held in memory, and every focused frame is appended to the
+ * output TIFF as soon as it is done.
+ * </p>
  */
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 
-import ij.macro.Interpreter;
+import ij.gui.GenericDialog;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+import ij.io.SaveDialog;
 
-import ij.plugin.filter.GaussianBlur;
 import ij.plugin.filter.PlugInFilter;
 
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import java.awt.Rectangle;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Gaussian_Stack_Focuser implements PlugInFilter {
+	/** the number of pixels per tile, to fit into the cache with all buffers */
+	private final static int TILE_PIXELS = 1 << 15, TILE_WIDTH = 256;
+
 	protected ImagePlus image;
 
+	protected double radius = 3;
+	protected FocusMeasure[] measures;
+	protected boolean keepBitDepth;
+	protected boolean depthMaps;
+	protected Roi roi;
+	protected Roi[] frameRois;
+	protected boolean zeroOutside;
+	protected int threadCount = Parallel.getThreadCount();
+	protected ProgressListener progressListener;
+	protected volatile boolean cancelled;
+
+	/**
+	 * Receives the number of focused (frame, channel) pairs so far.
+	 * <p>
+	 * It is called from the worker threads, and must therefore be thread-safe.
+	 * </p>
+	 */
+	public interface ProgressListener {
+		void progress(int done, int total);
+	}
+
+	public Gaussian_Stack_Focuser() { }
+
+	public Gaussian_Stack_Focuser(final double radius) {
+		this.radius = radius;
+	}
+
+	public void setRadius(final double radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * Sets the measures of crispiness to use; by default, the difference to
+	 * the Gaussian blur with the given radius is used.
+	 */
+	public void setFocusMeasures(final FocusMeasure... measures) {
+		this.measures = measures.length == 0 ? null : measures;
+	}
+
+	public FocusMeasure[] getFocusMeasures() {
+		if (measures != null)
+			return measures;
+		return new FocusMeasure[] { new FocusMeasure.GaussianDifference(radius) };
+	}
+
+	/**
+	 * Chooses whether 8-bit and 16-bit input results in an output of the same
+	 * bit depth (with the weighted means rounded), or in a 32-bit output.
+	 * <p>
+	 * Calibrated images are focused in raw pixel values, like all others, but
+	 * always into a 32-bit output: the output does not carry the calibration,
+	 * so rounded raw values would misrepresent it.
+	 * </p>
+	 */
+	public void setKeepBitDepth(final boolean keepBitDepth) {
+		this.keepBitDepth = keepBitDepth;
+	}
+
+	/**
+	 * Chooses whether to compute the depth and confidence maps, too. As they
+	 * are 32-bit, the output is then 32-bit even if the bit depth is to be
+	 * kept.
+	 */
+	public void setComputeDepthMaps(final boolean depthMaps) {
+		this.depthMaps = depthMaps;
+	}
+
+	/**
+	 * Restricts the focusing to an area ROI (null means the whole frame).
+	 */
+	public void setRoi(final Roi roi) {
+		this.roi = roi != null && roi.isArea() ? roi : null;
+	}
+
+	/**
+	 * Restricts the focusing of each frame to its own area ROI. Frames without
+	 * an entry (or with a null entry) fall back to the ROI set via
+	 * {@link #setRoi(Roi)}.
+	 *
+	 * @param frameRois the ROIs, indexed by frame - 1
+	 */
+	public void setFrameRois(final Roi[] frameRois) {
+		this.frameRois = frameRois;
+	}
+
+	/**
+	 * Chooses whether to write zeros outside the ROI rather than copying the
+	 * first slice.
+	 */
+	public void setZeroOutside(final boolean zeroOutside) {
+		this.zeroOutside = zeroOutside;
+	}
+
+	protected Roi getRoi(final int frame) {
+		if (frameRois != null && frame > 0 && frame <= frameRois.length &&
+				frameRois[frame - 1] != null && frameRois[frame - 1].isArea())
+			return frameRois[frame - 1];
+		return roi;
+	}
+
+	public void setThreadCount(final int threadCount) {
+		this.threadCount = Math.max(1, threadCount);
+	}
+
+	public void setProgressListener(final ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Stops the focusing as soon as the currently processed (frame, channel)
+	 * pairs are done; {@link #focus(ImagePlus)} then returns null.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
 		return DOES_8G | DOES_16 | DOES_32;
 	}
 
 	public void run(ImageProcessor ip) {
-		double radius = IJ.getNumber("Radius_of_Gaussian_blur", 3);
-		focus(image, radius, true).show();
+		String[] choices = Arrays.copyOf(FocusMeasure.NAMES, FocusMeasure.NAMES.length + 1);
+		choices[choices.length - 1] = "All (for comparison)";
+		GenericDialog gd = new GenericDialog("Gaussian Stack Focuser");
+		gd.addChoice("Focus_measure", choices, choices[0]);
+		gd.addNumericField("Radius_of_Gaussian_blur", radius, 2);
+		gd.addNumericField("Window_radius (other measures)", 2, 0);
+		gd.addCheckbox("Keep_bit_depth", keepBitDepth);
+		gd.addCheckbox("Depth_maps (weighted depth, sharpest slice, confidence)", depthMaps);
+		Roi[] frameRois = getFrameRois(image);
+		if (image.getRoi() != null && image.getRoi().isArea() || frameRois != null)
+			gd.addChoice("Outside_ROI", new String[] { "Copy first slice", "Zero" }, "Copy first slice");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		int choice = gd.getNextChoiceIndex();
+		setRadius(gd.getNextNumber());
+		double windowRadius = gd.getNextNumber();
+		setKeepBitDepth(gd.getNextBoolean());
+		setComputeDepthMaps(gd.getNextBoolean());
+		if (image.getRoi() != null && image.getRoi().isArea() || frameRois != null) {
+			setRoi(image.getRoi());
+			setFrameRois(frameRois);
+			setZeroOutside(gd.getNextChoiceIndex() == 1);
+		}
+		FocusMeasure[] measures = new FocusMeasure[choice < FocusMeasure.NAMES.length ? 1 : FocusMeasure.NAMES.length];
+		for (int i = 0; i < measures.length; i++) {
+			String name = FocusMeasure.NAMES[measures.length > 1 ? i : choice];
+			measures[i] = FocusMeasure.create(name, FocusMeasure.isGaussian(name) ? radius : windowRadius);
+		}
+		setFocusMeasures(measures);
+		IJ.resetEscape();
+		setProgressListener(new ProgressListener() {
+			@Override
+			public void progress(final int done, final int total) {
+				IJ.showProgress(done, total);
+				if (IJ.escapePressed())
+					cancel();
+			}
+		});
+		if (image.getStack().isVirtual()) {
+			SaveDialog dialog = new SaveDialog("Save focused image", "Focused " + image.getTitle(), ".tif");
+			if (dialog.getFileName() == null)
+				return;
+			File file = new File(dialog.getDirectory(), dialog.getFileName());
+			try {
+				focus(image, file);
+			} catch (IOException e) {
+				IJ.handleException(e);
+				return;
+			}
+			IJ.showProgress(1, 1);
+			IJ.showStatus((cancelled ? "Focusing canceled; partial result in " : "Focused image written to ") + file);
+			return;
+		}
+		ImagePlus result = focus(image);
+		if (result == null) {
+			IJ.showProgress(1, 1);
+			IJ.showStatus("Focusing canceled");
+			return;
+		}
+		result.show();
 	}
 
-	public static ImagePlus focus(ImagePlus image, double radius, boolean showProgress) {
-		int nSlices = image.getNSlices();
-		int nChannels = image.getNChannels();
-		int nFrames = image.getNFrames();
+	/**
+	 * Collects the area ROIs of the overlay that are associated with a frame.
+	 *
+	 * @return the ROIs indexed by frame - 1, or null if there are none
+	 */
+	protected static Roi[] getFrameRois(final ImagePlus image) {
+		final Overlay overlay = image.getOverlay();
+		if (overlay == null)
+			return null;
+		final int nFrames = image.getNFrames();
+		Roi[] result = null;
+		for (int i = 0; i < overlay.size(); i++) {
+			final Roi roi = overlay.get(i);
+			final int frame = roi.getTPosition();
+			if (!roi.isArea() || frame < 1 || frame > nFrames)
+				continue;
+			if (result == null)
+				result = new Roi[nFrames];
+			result[frame - 1] = roi;
+		}
+		return result;
+	}
 
-		ImageStack stack = image.getStack();
-		ImageStack output = new ImageStack(image.getWidth(), image.getHeight());
-		for (int frame = 1; frame <= nFrames; frame++)
-			for (int channel = 1; channel <= nChannels; channel++) {
-				FloatProcessor[] slices = new FloatProcessor[nSlices];
-				for (int slice = 1; slice <= nSlices; slice++) {
-					int index = image.getStackIndex(channel, slice, frame);
-					ImageProcessor ip = stack.getProcessor(index);
-					if (ip instanceof FloatProcessor)
-						slices[slice - 1] = (FloatProcessor)ip;
-					else
-						slices[slice - 1] = (FloatProcessor)ip.convertToFloat();
+	public static ImagePlus focus(ImagePlus image, double radius, boolean showProgress) {
+		Gaussian_Stack_Focuser focuser = new Gaussian_Stack_Focuser(radius);
+		if (showProgress)
+			focuser.setProgressListener(new ProgressListener() {
+				@Override
+				public void progress(final int done, final int total) {
+					IJ.showProgress(done, total);
 				}
-				output.addSlice("", focus(slices, radius));
-				if (showProgress)
-					IJ.showProgress((frame - 1) * nChannels + channel, nFrames * nChannels);
+			});
+		return focuser.focus(image);
+	}
+
+	public static FloatProcessor focus(FloatProcessor[] slices, double radius) {
+		return new Gaussian_Stack_Focuser(radius).focus(slices);
+	}
+
+	/**
+	 * Focuses all (frame, channel) pairs of a hyperstack.
+	 *
+	 * @param image the hyperstack
+	 * @return the focused image with one slice per channel and frame, or null
+	 *         if the focusing was canceled
+	 */
+	public ImagePlus focus(final ImagePlus image) {
+		final int nSlices = image.getNSlices();
+		final int nChannels = image.getNChannels();
+		final int nFrames = image.getNFrames();
+		final int total = nFrames * nChannels;
+
+		final FocusMeasure[] measures = getFocusMeasures();
+		final ImageStack stack = image.getStack();
+		final boolean keep = keepsBitDepth(image);
+		final ImageProcessor[][] focused = new ImageProcessor[total][];
+		final AtomicInteger done = new AtomicInteger();
+		// split the threads between (frame, channel) pairs and their tiles
+		final int unitThreads = Math.max(1, Math.min(threadCount, total));
+		final int tileThreads = Math.max(1, threadCount / unitThreads);
+		Parallel.forEach(0, total, unitThreads, new Parallel.Body() {
+			@Override
+			public void run(final int index) {
+				if (cancelled)
+					return;
+				final int frame = index / nChannels + 1;
+				final int channel = index % nChannels + 1;
+				final ImageProcessor[] slices = new ImageProcessor[nSlices];
+				// virtual stacks are read one slice at a time
+				for (int slice = 1; slice <= nSlices; slice++)
+					slices[slice - 1] = Kymograph.getProcessor(stack, image.getStackIndex(channel, slice, frame));
+				focused[index] = focusAll(slices, measures, tileThreads, getRoi(frame), keep);
+				if (progressListener != null)
+					progressListener.progress(done.incrementAndGet(), total);
 			}
+		});
+		if (cancelled)
+			return null;
+
+		// the output is ordered by frame, output and channel, regardless of completion order
+		final String[] labels = getOutputLabels(measures);
+		ImageStack output = new ImageStack(image.getWidth(), image.getHeight());
+		for (int frame = 0; frame < nFrames; frame++)
+			for (int o = 0; o < labels.length; o++)
+				for (int channel = 0; channel < nChannels; channel++)
+					output.addSlice(labels.length > 1 ? labels[o] : "",
+						focused[frame * nChannels + channel][o]);
 		ImagePlus result = new ImagePlus("Focused " + image.getTitle(), output);
-		result.setDimensions(nChannels, 1, nFrames);
+		result.setDimensions(nChannels, labels.length, nFrames);
 		return result;
 	}
 
-	public static FloatProcessor focus(FloatProcessor[] slices, double radius) {
-		boolean wasBatchMode = Interpreter.batchMode;
-		Interpreter.batchMode = true;
-
-		// calculate weights
-		GaussianBlur blur = new GaussianBlur();
-		int pixelCount = slices[0].getWidth() * slices[0].getHeight();
-		FloatProcessor[] weights = new FloatProcessor[slices.length];
-		for (int i = 0; i < slices.length; i++) {
-			weights[i] = (FloatProcessor)slices[i].duplicate();
-			blur.blur(weights[i], radius);
-			float[] pixels1 = (float[])slices[i].getPixels();
-			float[] pixels2 = (float[])weights[i].getPixels();
-			for (int j = 0; j < pixelCount; j++)
-				pixels2[j] = (float)Math.abs(pixels2[j] - pixels1[j]);
-		}
-
-		FloatProcessor result = (FloatProcessor)slices[0].duplicate();
-		for (int j = 0; j < pixelCount; j++) {
-			float cumul = 0, totalWeight = 0;
-			for (int i = 0; i < slices.length; i++) {
-				float value = slices[i].getf(j);
-				float weight = weights[i].getf(j);
-				cumul += value * weight;
-				totalWeight += weight;
+	/**
+	 * Focuses a (virtual) hyperstack frame by frame, writing to a TIFF file.
+	 * <p>
+	 * While the channels of one frame are focused, the z-slices of the next
+	 * frame are read on a separate thread, so that reading from disk overlaps
+	 * with the computation. If the focusing is canceled, the file holds the
+	 * frames focused so far.
+	 * </p>
+	 *
+	 * @param image the hyperstack, typically backed by a virtual stack
+	 * @param file the output file
+	 */
+	public void focus(final ImagePlus image, final File file) throws IOException {
+		final int nSlices = image.getNSlices();
+		final int nChannels = image.getNChannels();
+		final int nFrames = image.getNFrames();
+
+		final FocusMeasure[] measures = getFocusMeasures();
+		final int outputCount = getOutputLabels(measures).length;
+		final boolean keep = keepsBitDepth(image);
+		final int bitDepth = keep ? image.getBitDepth() : 32;
+		final StreamingTiffWriter writer = new StreamingTiffWriter(file, image.getWidth(), image.getHeight(), bitDepth,
+			nChannels, outputCount);
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		final int unitThreads = Math.max(1, Math.min(threadCount, nChannels));
+		final int tileThreads = Math.max(1, threadCount / unitThreads);
+		try {
+			Future<ImageProcessor[]> next = reader.submit(readFrame(image, 1));
+			for (int frame = 1; frame <= nFrames && !cancelled; frame++) {
+				final ImageProcessor[] slices = get(next);
+				final Roi frameRoi = getRoi(frame);
+				if (frame < nFrames)
+					next = reader.submit(readFrame(image, frame + 1));
+
+				final ImageProcessor[][] focused = new ImageProcessor[nChannels][];
+				Parallel.forEach(0, nChannels, unitThreads, new Parallel.Body() {
+					@Override
+					public void run(final int channel) {
+						focused[channel] = focusAll(Arrays.copyOfRange(slices, channel * nSlices, (channel + 1) * nSlices),
+							measures, tileThreads, frameRoi, keep);
+					}
+				});
+				for (int o = 0; o < outputCount; o++)
+					for (int channel = 0; channel < nChannels; channel++)
+						writer.write(focused[channel][o]);
+				if (progressListener != null)
+					progressListener.progress(frame * nChannels, nFrames * nChannels);
 			}
-			if (totalWeight != 0)
-				result.setf(j, cumul / totalWeight);
 		}
-		Interpreter.batchMode = wasBatchMode;
-		return result;
+		finally {
+			reader.shutdownNow();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Reads all z-slices of all channels of one frame, ordered by channel.
+	 */
+	protected static Callable<ImageProcessor[]> readFrame(final ImagePlus image, final int frame) {
+		return new Callable<ImageProcessor[]>() {
+			@Override
+			public ImageProcessor[] call() {
+				final int nSlices = image.getNSlices();
+				final int nChannels = image.getNChannels();
+				final ImageStack stack = image.getStack();
+				final ImageProcessor[] result = new ImageProcessor[nChannels * nSlices];
+				for (int channel = 1; channel <= nChannels; channel++)
+					for (int slice = 1; slice <= nSlices; slice++)
+						result[(channel - 1) * nSlices + slice - 1] =
+							stack.getProcessor(image.getStackIndex(channel, slice, frame));
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Decides whether the weighted means of an image are stored in its own bit
+	 * depth; see {@link #setKeepBitDepth(boolean)}.
+	 */
+	protected boolean keepsBitDepth(final ImagePlus image) {
+		return keepBitDepth && !depthMaps && image.getBitDepth() != 24 && !image.getCalibration().calibrated();
+	}
+
+	protected static <T> T get(final Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Focuses the z-slices of a single frame and channel.
+	 *
+	 * @param slices the z-slices
+	 * @return the weighted sum of the slices
+	 */
+	public FloatProcessor focus(FloatProcessor[] slices) {
+		return (FloatProcessor)focusSlices(slices);
+	}
+
+	/**
+	 * Focuses the z-slices of a single frame and channel, tile by tile.
+	 *
+	 * @param slices the z-slices, of type 8-bit, 16-bit or 32-bit
+	 * @return the weighted sum of the slices (using the first focus measure),
+	 *         32-bit unless the bit depth is to be kept
+	 */
+	public ImageProcessor focusSlices(final ImageProcessor[] slices) {
+		return focusAll(slices, getFocusMeasures())[0];
+	}
+
+	/**
+	 * Focuses the z-slices of a single frame and channel with several focus
+	 * measures in a single pass.
+	 *
+	 * @param slices the z-slices, of type 8-bit, 16-bit or 32-bit
+	 * @param measures the focus measures
+	 * @return the weighted sums of the slices, one per measure, followed by the
+	 *         depth maps if requested (see {@link #getOutputLabels})
+	 */
+	public ImageProcessor[] focusAll(final ImageProcessor[] slices, final FocusMeasure[] measures) {
+		return focusAll(slices, measures, threadCount, roi, keepBitDepth);
+	}
+
+	/**
+	 * Focuses the z-slices of a single frame and channel inside an ROI,
+	 * distributing the tiles over the given number of threads.
+	 */
+	protected ImageProcessor[] focusAll(final ImageProcessor[] slices, final FocusMeasure[] measures, final int threads, final Roi roi,
+			final boolean keepBitDepth) {
+		final int width = slices[0].getWidth(), height = slices[0].getHeight();
+		final ImageProcessor[] results = new ImageProcessor[getOutputLabels(measures).length];
+		for (int o = 0; o < results.length; o++)
+			results[o] = o < measures.length ? createOutput(slices[0], width, height, keepBitDepth) : new FloatProcessor(width, height);
+
+		Rectangle bounds = new Rectangle(0, 0, width, height);
+		ImageProcessor mask = null;
+		if (roi != null) {
+			if (!zeroOutside)
+				copyFirstSlice(slices[0], results, measures.length, bounds);
+			mask = roi.getMask();
+			bounds = bounds.intersection(roi.getBounds());
+			if (bounds.isEmpty())
+				return results;
+		}
+
+		final Rectangle[] tiles = getTiles(bounds, measures);
+		final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+			@Override
+			protected Workspace initialValue() {
+				final Workspace workspace = new Workspace(measures.length, depthMaps);
+				// a measure that cannot be tiled may use the threads itself
+				if (tiles.length == 1)
+					workspace.scratch.setThreadCount(threads);
+				return workspace;
+			}
+		};
+		// every tile writes a disjoint part of the results
+		Parallel.forEach(0, tiles.length, threads, new Parallel.Body() {
+			@Override
+			public void run(final int index) {
+				focusTile(slices, tiles[index], measures, results, workspaces.get());
+			}
+		});
+
+		if (mask != null) {
+			// reset the pixels in the bounding box but outside a non-rectangular ROI
+			final Rectangle roiBounds = roi.getBounds();
+			final byte[] maskPixels = (byte[])mask.getPixels();
+			final float[] first = new float[bounds.width];
+			for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+				final Rectangle row = new Rectangle(bounds.x, y, bounds.width, 1);
+				read(slices[0], row, first);
+				for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+					if (maskPixels[(y - roiBounds.y) * roiBounds.width + x - roiBounds.x] != 0)
+						continue;
+					for (int o = 0; o < results.length; o++)
+						results[o].setf(x, y, o < measures.length && !zeroOutside ? first[x - bounds.x] : 0);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Initializes the focused images with the first slice, row by row.
+	 */
+	protected static void copyFirstSlice(final ImageProcessor first, final ImageProcessor[] results, final int count, final Rectangle bounds) {
+		final float[] row = new float[bounds.width];
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			final Rectangle rect = new Rectangle(bounds.x, y, bounds.width, 1);
+			read(first, rect, row);
+			for (int o = 0; o < count; o++)
+				write(row, results[o], rect);
+		}
+	}
+
+	/**
+	 * @return the labels of the outputs per (frame, channel) pair
+	 */
+	public String[] getOutputLabels(final FocusMeasure[] measures) {
+		final String[] labels = new String[measures.length + (depthMaps ? 3 : 0)];
+		for (int m = 0; m < measures.length; m++)
+			labels[m] = measures[m].getName();
+		if (depthMaps) {
+			labels[measures.length] = "Depth";
+			labels[measures.length + 1] = "Sharpest slice";
+			labels[measures.length + 2] = "Confidence";
+		}
+		return labels;
+	}
+
+	protected static boolean supportsTiles(final FocusMeasure[] measures) {
+		for (FocusMeasure measure : measures)
+			if (!measure.supportsTiles())
+				return false;
+		return true;
+	}
+
+	protected static int getHalo(final FocusMeasure[] measures) {
+		int halo = 0;
+		for (FocusMeasure measure : measures)
+			halo = Math.max(halo, measure.getHalo());
+		return halo;
+	}
+
+	/**
+	 * Splits a region of an image into tiles.
+	 * <p>
+	 * The tiles are at least four halos wide and high, to limit the overhead
+	 * of the halos; if a focus measure cannot be computed in tiles, the single
+	 * tile is the whole region (and its halo is the whole image).
+	 * </p>
+	 */
+	protected static Rectangle[] getTiles(final Rectangle bounds, final FocusMeasure[] measures) {
+		if (!supportsTiles(measures))
+			return new Rectangle[] { bounds };
+		final int minimalSize = 4 * getHalo(measures);
+		final int tileWidth = Math.min(bounds.width, Math.max(minimalSize, TILE_WIDTH));
+		final int tileHeight = Math.min(bounds.height, Math.max(minimalSize, TILE_PIXELS / tileWidth));
+		final int columns = (bounds.width + tileWidth - 1) / tileWidth, rows = (bounds.height + tileHeight - 1) / tileHeight;
+		final Rectangle[] tiles = new Rectangle[columns * rows];
+		for (int row = 0; row < rows; row++)
+			for (int column = 0; column < columns; column++) {
+				final int x = column * tileWidth, y = row * tileHeight;
+				tiles[row * columns + column] = new Rectangle(bounds.x + x, bounds.y + y,
+					Math.min(tileWidth, bounds.width - x), Math.min(tileHeight, bounds.height - y));
+			}
+		return tiles;
+	}
+
+	protected ImageProcessor createOutput(final ImageProcessor slice, final int width, final int height,
+			final boolean keepBitDepth) {
+		// calibrated values cannot be stored as raw pixel values
+		if (keepBitDepth && !depthMaps && !(slice instanceof FloatProcessor) && slice.getCalibrationTable() == null &&
+				(slice.getPixels() instanceof byte[] || slice.getPixels() instanceof short[]))
+			return slice.createProcessor(width, height);
+		return new FloatProcessor(width, height);
+	}
+
+	/**
+	 * The per-thread buffers for focusing tiles.
+	 */
+	protected static class Workspace {
+		protected final FocusMeasure.Scratch scratch = new FocusMeasure.Scratch();
+		protected float[] values, weights;
+		protected final float[][] cumul, totalWeight;
+		protected final boolean depthMaps;
+		/** the depth maps' sum of weighted slice numbers, maximal weight and its slice number */
+		protected float[] depthSum, peak, sharpest;
+
+		public Workspace(final int measureCount, final boolean depthMaps) {
+			cumul = new float[measureCount][];
+			totalWeight = new float[measureCount][];
+			this.depthMaps = depthMaps;
+		}
+
+		protected void prepare(final int paddedSize, final int tileSize) {
+			if (values == null || values.length < paddedSize)
+				values = new float[paddedSize];
+			if (weights == null || weights.length < tileSize)
+				weights = new float[tileSize];
+			for (int m = 0; m < cumul.length; m++) {
+				if (cumul[m] == null || cumul[m].length < tileSize) {
+					cumul[m] = new float[tileSize];
+					totalWeight[m] = new float[tileSize];
+				}
+				else {
+					Arrays.fill(cumul[m], 0, tileSize, 0);
+					Arrays.fill(totalWeight[m], 0, tileSize, 0);
+				}
+			}
+			if (!depthMaps)
+				return;
+			if (depthSum == null || depthSum.length < tileSize) {
+				depthSum = new float[tileSize];
+				peak = new float[tileSize];
+				sharpest = new float[tileSize];
+			}
+			else {
+				Arrays.fill(depthSum, 0, tileSize, 0);
+				Arrays.fill(peak, 0, tileSize, 0);
+			}
+			Arrays.fill(sharpest, 0, tileSize, 1);
+		}
+	}
+
+	/**
+	 * Focuses one tile of a (frame, channel) pair.
+	 * <p>
+	 * The focus measures see the tile together with its halo, so that the
+	 * weights inside the tile are identical to those computed on the whole
+	 * image.
+	 * </p>
+	 */
+	protected void focusTile(final ImageProcessor[] slices, final Rectangle tile, final FocusMeasure[] measures,
+			final ImageProcessor[] results, final Workspace workspace) {
+		final Rectangle image = new Rectangle(0, 0, slices[0].getWidth(), slices[0].getHeight());
+		final int halo = getHalo(measures);
+		final Rectangle padded = !supportsTiles(measures) ? image :
+			new Rectangle(tile.x - halo, tile.y - halo, tile.width + 2 * halo, tile.height + 2 * halo).intersection(image);
+		final Rectangle relative = new Rectangle(tile.x - padded.x, tile.y - padded.y, tile.width, tile.height);
+		final int tileSize = tile.width * tile.height;
+		workspace.prepare(padded.width * padded.height, tileSize);
+		final float[] values = workspace.values, weights = workspace.weights;
+
+		for (int z = 0; z < slices.length; z++) {
+			read(slices[z], padded, values);
+			for (int m = 0; m < measures.length; m++) {
+				measures[m].computeWeights(values, padded, relative, weights, workspace.scratch);
+				final float[] cumul = workspace.cumul[m], totalWeight = workspace.totalWeight[m];
+				for (int y = 0, j = 0; y < tile.height; y++)
+					for (int x = 0, i = (relative.y + y) * padded.width + relative.x; x < tile.width; x++, i++, j++) {
+						cumul[j] += values[i] * weights[j];
+						totalWeight[j] += weights[j];
+					}
+				if (m == 0 && workspace.depthMaps) {
+					final float sliceNumber = z + 1;
+					final float[] depthSum = workspace.depthSum, peak = workspace.peak, sharpest = workspace.sharpest;
+					for (int j = 0; j < tileSize; j++) {
+						depthSum[j] += sliceNumber * weights[j];
+						if (weights[j] > peak[j]) {
+							peak[j] = weights[j];
+							sharpest[j] = sliceNumber;
+						}
+					}
+				}
+			}
+		}
+
+		// where all weights vanish, the first slice is the result
+		read(slices[0], tile, values);
+		for (int m = 0; m < measures.length; m++) {
+			final float[] cumul = workspace.cumul[m], totalWeight = workspace.totalWeight[m];
+			for (int j = 0; j < tileSize; j++)
+				weights[j] = totalWeight[j] != 0 ? cumul[j] / totalWeight[j] : values[j];
+			write(weights, results[m], tile);
+		}
+
+		if (workspace.depthMaps) {
+			// where all weights vanish, the first slice is the result, too
+			final float[] totalWeight = workspace.totalWeight[0];
+			final float[] depthSum = workspace.depthSum, peak = workspace.peak;
+			for (int j = 0; j < tileSize; j++)
+				weights[j] = totalWeight[j] != 0 ? depthSum[j] / totalWeight[j] : 1;
+			write(weights, results[measures.length], tile);
+			write(workspace.sharpest, results[measures.length + 1], tile);
+			for (int j = 0; j < tileSize; j++)
+				weights[j] = totalWeight[j] != 0 ? peak[j] / totalWeight[j] : 0;
+			write(weights, results[measures.length + 2], tile);
+		}
+	}
+
+	/**
+	 * Copies the (calibrated) pixel values of a rectangle into a float buffer,
+	 * just like {@link ImageProcessor#convertToFloat()} but without
+	 * allocating a new image.
+	 */
+	protected static void read(final ImageProcessor ip, final Rectangle rect, final float[] buffer) {
+		final int width = ip.getWidth();
+		final Object pixels = ip.getPixels();
+		final float[] cTable = ip.getCalibrationTable();
+		if (pixels instanceof float[]) {
+			for (int y = 0; y < rect.height; y++)
+				System.arraycopy(pixels, (rect.y + y) * width + rect.x, buffer, y * rect.width, rect.width);
+		}
+		else if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[])pixels;
+			for (int y = 0, j = 0; y < rect.height; y++)
+				for (int x = 0, i = (rect.y + y) * width + rect.x; x < rect.width; x++, i++, j++)
+					buffer[j] = cTable == null ? bytes[i] & 0xff : cTable[bytes[i] & 0xff];
+		}
+		else if (pixels instanceof short[]) {
+			final short[] shorts = (short[])pixels;
+			for (int y = 0, j = 0; y < rect.height; y++)
+				for (int x = 0, i = (rect.y + y) * width + rect.x; x < rect.width; x++, i++, j++)
+					buffer[j] = cTable == null ? shorts[i] & 0xffff : cTable[shorts[i] & 0xffff];
+		}
+		else {
+			final float[] converted = (float[])ip.convertToFloat().getPixels();
+			for (int y = 0; y < rect.height; y++)
+				System.arraycopy(converted, (rect.y + y) * width + rect.x, buffer, y * rect.width, rect.width);
+		}
+	}
+
+	/**
+	 * Stores the values of a rectangle, rounding and clamping them if the
+	 * target is 8-bit or 16-bit.
+	 */
+	protected static void write(final float[] buffer, final ImageProcessor ip, final Rectangle rect) {
+		final int width = ip.getWidth();
+		final Object pixels = ip.getPixels();
+		if (pixels instanceof float[]) {
+			for (int y = 0; y < rect.height; y++)
+				System.arraycopy(buffer, y * rect.width, pixels, (rect.y + y) * width + rect.x, rect.width);
+		}
+		else if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[])pixels;
+			for (int y = 0, j = 0; y < rect.height; y++)
+				for (int x = 0, i = (rect.y + y) * width + rect.x; x < rect.width; x++, i++, j++)
+					bytes[i] = (byte)Math.max(0, Math.min(255, (int)(buffer[j] + 0.5f)));
+		}
+		else {
+			final short[] shorts = (short[])pixels;
+			for (int y = 0, j = 0; y < rect.height; y++)
+				for (int x = 0, i = (rect.y + y) * width + rect.x; x < rect.width; x++, i++, j++)
+					shorts[i] = (short)Math.max(0, Math.min(65535, (int)(buffer[j] + 0.5f)));
+		}
 	}
 }
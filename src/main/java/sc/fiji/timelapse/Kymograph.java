@@ -0,0 +1,143 @@
+package sc.fiji.timelapse;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.PolygonRoi;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Helpers for kymographs extracted along lines of interest.
+ * <p>
+ * The rows of a kymograph are zero-padded to the length of the longest LOI.
+ * The actual length of every row is attached to the kymograph image, so that
+ * consumers such as {@link Phase_Map} can skip the padding without having to
+ * guess it from the pixel values.
+ * </p>
+ * <p>
+ * The LOIs of the slices are independent of each other, so the slices are
+ * straightened concurrently, using the cached {@link SamplingPlan} of every
+ * LOI. The rows are stored by slice index, so the result is the same as
+ * straightening the slices one after the other.
+ * </p>
+ */
+public class Kymograph {
+	public final static String ROW_LENGTHS_PROPERTY = "Kymograph row lengths";
+
+	public static void setRowLengths(final ImagePlus image, final int[] rowLengths) {
+		image.setProperty(ROW_LENGTHS_PROPERTY, rowLengths);
+	}
+
+	/**
+	 * Returns the valid length of each row of a kymograph.
+	 *
+	 * @param image the kymograph
+	 * @return the row lengths, or null if they are unknown (e.g. when the
+	 *         kymograph was loaded from disk) or no longer fit the image
+	 *         (e.g. after cropping it, which keeps the property)
+	 */
+	public static int[] getRowLengths(final ImagePlus image) {
+		final Object property = image.getProperty(ROW_LENGTHS_PROPERTY);
+		if (!(property instanceof int[]))
+			return null;
+		final int[] rowLengths = (int[])property;
+		if (rowLengths.length != image.getHeight())
+			return null;
+		final int width = image.getWidth();
+		for (final int length : rowLengths)
+			if (length < 0 || length > width)
+				return null;
+		return rowLengths;
+	}
+
+	/**
+	 * Straightens the LOI of every slice. The columns of the kymograph
+	 * correspond to the points of the LOIs' {@link SamplingPlan#getCentreLine()
+	 * centre lines}.
+	 *
+	 * @param image the image whose slices are straightened
+	 * @param rois the LOI per slice (or null where there is none)
+	 * @param lineWidth the line width
+	 * @param useFullLineWidth whether to keep one row per parallel line, or to
+	 *          average them into a single row
+	 * @return the rows of the kymograph; slices without LOI have rows of
+	 *         length 0
+	 */
+	public static float[][] extractRows(final ImagePlus image, final PolygonRoi[] rois, final int lineWidth,
+			final boolean useFullLineWidth) {
+		final int linesPerROI = useFullLineWidth ? lineWidth : 1;
+		final float[][] values = new float[rois.length * linesPerROI][];
+		final ImageStack stack = image.getStack();
+		Parallel.forEach(0, rois.length, new Parallel.Body() {
+			@Override
+			public void run(final int i) {
+				final FloatProcessor ip = rois[i] == null ? null :
+					SamplingPlan.get(rois[i]).straighten(getProcessor(stack, i + 1), lineWidth);
+				if (ip == null) {
+					for (int j = 0; j < linesPerROI; j++)
+						values[i * linesPerROI + j] = new float[0];
+					return;
+				}
+				int w = ip.getWidth();
+				if (!useFullLineWidth && lineWidth > 1)
+					// need to average explicitely
+					for (int j = 0; j < w; j++) {
+						float value = ip.getf(j, 0);
+						for (int k = 1; k < lineWidth; k++)
+							value += ip.getf(j, k);
+						ip.setf(j, 0, value / lineWidth);
+					}
+				float[] pixels = (float[])ip.getPixels();
+				for (int j = 0; j < linesPerROI; j++) {
+					values[i * linesPerROI + j] = new float[w];
+					System.arraycopy(pixels, j * w, values[i * linesPerROI + j], 0, w);
+				}
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Gets a slice of a stack; virtual stacks are read one slice at a time, as
+	 * their readers need not be thread-safe.
+	 */
+	protected static ImageProcessor getProcessor(final ImageStack stack, final int sliceNumber) {
+		if (!stack.isVirtual())
+			return stack.getProcessor(sliceNumber);
+		synchronized (stack) {
+			return stack.getProcessor(sliceNumber);
+		}
+	}
+
+	/**
+	 * @return the length of the longest row
+	 */
+	public static int getWidth(final float[][] rows) {
+		int width = 0;
+		for (float[] row : rows)
+			width = Math.max(width, row.length);
+		return width;
+	}
+
+	/**
+	 * Assembles the rows into a kymograph, padding them with zeros.
+	 *
+	 * @param title the title of the kymograph
+	 * @param rows the rows, at least one of which must not be empty
+	 * @return the kymograph, with the row lengths attached
+	 */
+	public static ImagePlus createImage(final String title, final float[][] rows) {
+		final int width = getWidth(rows), height = rows.length;
+		final float[] pixels = new float[width * height];
+		final int[] rowLengths = new int[height];
+		for (int i = 0; i < height; i++) {
+			System.arraycopy(rows[i], 0, pixels, i * width, rows[i].length);
+			rowLengths[i] = rows[i].length;
+		}
+		final ImagePlus image = new ImagePlus(title, new FloatProcessor(width, height, pixels, null));
+		setRowLengths(image, rowLengths);
+		return image;
+	}
+}
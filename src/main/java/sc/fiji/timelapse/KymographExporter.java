@@ -0,0 +1,171 @@
+package sc.fiji.timelapse;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the values of a kymograph to a file.
+ * <p>
+ * The values are streamed straight from the kymograph's pixels, through a
+ * single reused buffer, instead of being copied into a results table first.
+ * Rows shorter than the kymograph (see {@link Kymograph#getRowLengths}) end
+ * early: in the text formats, the cells beyond the row length are left
+ * empty.
+ * </p>
+ * <p>
+ * The text formats have one line per kymograph row, preceded by a header
+ * with the column indices. The binary format is columnar, so that the time
+ * course of any position can be read in one go: after the magic
+ * <code>KYMO</code> come the width and the height (big-endian 32-bit
+ * integers), then the row lengths (one integer per row), and then the values
+ * (big-endian 32-bit floats) column by column, each column holding one value
+ * per row (0 beyond the row length).
+ * </p>
+ */
+public class KymographExporter {
+	public final static String[] FORMATS = { "CSV", "TSV", "Binary" };
+	public final static String[] EXTENSIONS = { ".csv", ".tsv", ".kymo" };
+
+	private final static int BUFFER_SIZE = 1 << 20;
+	/** the rows formatted concurrently by every thread, between two writes */
+	private final static int BLOCK_SIZE = 64;
+
+	/**
+	 * Writes the values of a kymograph.
+	 *
+	 * @param file the output file
+	 * @param format one of {@link #FORMATS}
+	 * @param kymograph the (32-bit) kymograph
+	 */
+	public static void write(final File file, final String format, final ImagePlus kymograph) throws IOException {
+		final int width = kymograph.getWidth(), height = kymograph.getHeight();
+		final float[] pixels = (float[])kymograph.getProcessor().convertToFloat().getPixels();
+		write(file, format, pixels, width, height, Kymograph.getRowLengths(kymograph));
+	}
+
+	/**
+	 * Writes the values of a kymograph.
+	 *
+	 * @param file the output file
+	 * @param format one of {@link #FORMATS}
+	 * @param pixels the values, row by row
+	 * @param width the width of the kymograph
+	 * @param height the height of the kymograph
+	 * @param rowLengths the valid length of every row, or null if all rows
+	 *          are complete
+	 */
+	public static void write(final File file, final String format, final float[] pixels, final int width, final int height,
+			final int[] rowLengths) throws IOException {
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(0);
+			final FileChannel channel = out.getChannel();
+			if (format.equals(FORMATS[0]))
+				writeText(channel, ',', pixels, width, height, rowLengths);
+			else if (format.equals(FORMATS[1]))
+				writeText(channel, '\t', pixels, width, height, rowLengths);
+			else if (format.equals(FORMATS[2]))
+				writeBinary(channel, pixels, width, height, rowLengths);
+			else
+				throw new IllegalArgumentException("Unknown format: " + format);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the format matching the file's extension, or the first format
+	 */
+	public static String getFormat(final File file) {
+		final String name = file.getName().toLowerCase();
+		for (int i = 0; i < EXTENSIONS.length; i++)
+			if (name.endsWith(EXTENSIONS[i]))
+				return FORMATS[i];
+		return FORMATS[0];
+	}
+
+	protected static void writeText(final FileChannel channel, final char separator, final float[] pixels,
+			final int width, final int height, final int[] rowLengths) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		final StringBuilder header = new StringBuilder();
+		for (int x = 0; x < width; x++)
+			header.append(x == 0 ? "" : separator).append(x);
+		put(channel, buffer, header.append('\n'));
+
+		// format blocks of rows concurrently, and write them in order
+		final int threads = Parallel.getThreadCount();
+		final StringBuilder[] formatted = new StringBuilder[threads];
+		for (int block = 0; block * BLOCK_SIZE < height; block += threads) {
+			final int firstBlock = block;
+			final int blockCount = Math.min(threads, (height + BLOCK_SIZE - 1) / BLOCK_SIZE - block);
+			Parallel.forEach(0, blockCount, threads, new Parallel.Body() {
+				@Override
+				public void run(final int index) {
+					if (formatted[index] == null)
+						formatted[index] = new StringBuilder();
+					final StringBuilder builder = formatted[index];
+					builder.setLength(0);
+					final int start = (firstBlock + index) * BLOCK_SIZE;
+					for (int y = start; y < Math.min(height, start + BLOCK_SIZE); y++) {
+						final int length = rowLengths == null ? width : Math.min(width, rowLengths[y]);
+						for (int x = 0; x < width; x++) {
+							if (x > 0)
+								builder.append(separator);
+							if (x < length)
+								builder.append(pixels[y * width + x]);
+						}
+						builder.append('\n');
+					}
+				}
+			});
+			for (int index = 0; index < blockCount; index++)
+				put(channel, buffer, formatted[index]);
+		}
+		flush(channel, buffer);
+	}
+
+	protected static void writeBinary(final FileChannel channel, final float[] pixels,
+			final int width, final int height, final int[] rowLengths) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.put((byte)'K').put((byte)'Y').put((byte)'M').put((byte)'O');
+		buffer.putInt(width).putInt(height);
+		for (int y = 0; y < height; y++) {
+			if (buffer.remaining() < 4)
+				flush(channel, buffer);
+			buffer.putInt(rowLengths == null ? width : rowLengths[y]);
+		}
+		for (int x = 0; x < width; x++)
+			for (int y = 0; y < height; y++) {
+				if (buffer.remaining() < 4)
+					flush(channel, buffer);
+				buffer.putFloat(rowLengths == null || x < rowLengths[y] ? pixels[y * width + x] : 0);
+			}
+		flush(channel, buffer);
+	}
+
+	/**
+	 * Appends ASCII text to the buffer, writing the buffer whenever it is
+	 * full.
+	 */
+	protected static void put(final FileChannel channel, final ByteBuffer buffer, final CharSequence text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			if (!buffer.hasRemaining())
+				flush(channel, buffer);
+			buffer.put((byte)text.charAt(i));
+		}
+	}
+
+	protected static void flush(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+}
@@ -35,7 +35,7 @@ public class KymographMouseListener implements MouseMotionListener, WindowListen
 			original.killRoi();
 			return;
 		}
-		FloatPolygon polygon = roi.getFloatPolygon();
+		FloatPolygon polygon = SamplingPlan.get(roi).getCentreLine();
 		if (polygon.npoints <= x)
 			return;
 		int x2 = (int)polygon.xpoints[x];
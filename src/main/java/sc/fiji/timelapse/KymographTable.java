@@ -0,0 +1,191 @@
+package sc.fiji.timelapse;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import ij.gui.GenericDialog;
+
+import ij.io.SaveDialog;
+
+import java.awt.BorderLayout;
+import java.awt.EventQueue;
+import java.awt.FlowLayout;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Shows the values of a kymograph in a table.
+ * <p>
+ * The table reads the values straight from the kymograph's pixels, and only
+ * for the rows and columns that are visible, so that even large kymographs
+ * are shown at once. The rows are shown one page at a time; the values can
+ * be saved with the {@link KymographExporter}.
+ * </p>
+ */
+public class KymographTable extends JFrame {
+	private final static long serialVersionUID = 1L;
+	private final static int PAGE_SIZE = 1000;
+
+	protected final ImagePlus kymograph;
+	protected final float[] pixels;
+	protected final int width, height;
+	protected final int[] rowLengths;
+	protected final Model model;
+	protected int page;
+	protected final JLabel pageLabel;
+
+	/**
+	 * Creates the table of a kymograph.
+	 *
+	 * @param title the title of the window
+	 * @param kymograph the 32-bit kymograph; its pixels are not copied
+	 */
+	public KymographTable(final String title, final ImagePlus kymograph) {
+		super(title);
+		this.kymograph = kymograph;
+		pixels = (float[])kymograph.getProcessor().getPixels();
+		width = kymograph.getWidth();
+		height = kymograph.getHeight();
+		rowLengths = Kymograph.getRowLengths(kymograph);
+
+		model = new Model();
+		final JTable table = new JTable(model);
+		table.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+		getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+
+		final JPanel buttons = new JPanel(new FlowLayout());
+		final JButton previous = new JButton("<");
+		previous.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				setPage(page - 1);
+			}
+		});
+		buttons.add(previous);
+		pageLabel = new JLabel();
+		buttons.add(pageLabel);
+		final JButton next = new JButton(">");
+		next.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				setPage(page + 1);
+			}
+		});
+		buttons.add(next);
+		final JButton save = new JButton("Save...");
+		save.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(final ActionEvent e) {
+				save();
+			}
+		});
+		buttons.add(save);
+		getContentPane().add(buttons, BorderLayout.SOUTH);
+
+		setPage(0);
+		setSize(800, 600);
+		setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+	}
+
+	public int getPageCount() {
+		return Math.max(1, (height + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	public void setPage(final int page) {
+		this.page = Math.max(0, Math.min(getPageCount() - 1, page));
+		pageLabel.setText("Rows " + (this.page * PAGE_SIZE + 1) + "-" + Math.min(height, (this.page + 1) * PAGE_SIZE)
+			+ " of " + height);
+		model.fireTableDataChanged();
+	}
+
+	/**
+	 * Shows the table of a kymograph; the table is created on the event
+	 * dispatch thread, as Swing requires.
+	 *
+	 * @param title the title of the window
+	 * @param kymograph the 32-bit kymograph; its pixels are not copied
+	 */
+	public static void show(final String title, final ImagePlus kymograph) {
+		EventQueue.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				new KymographTable(title, kymograph).setVisible(true);
+			}
+		});
+	}
+
+	/**
+	 * Asks for a format and a file, and writes the values there.
+	 */
+	public void save() {
+		final GenericDialog gd = new GenericDialog("Save kymograph values");
+		gd.addChoice("Format", KymographExporter.FORMATS, KymographExporter.FORMATS[0]);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		final int format = gd.getNextChoiceIndex();
+		final SaveDialog dialog = new SaveDialog("Save kymograph values", kymograph.getTitle(), KymographExporter.EXTENSIONS[format]);
+		if (dialog.getFileName() == null)
+			return;
+		final File file = new File(dialog.getDirectory(), dialog.getFileName());
+		new Thread("Save " + file.getName()) {
+			@Override
+			public void run() {
+				try {
+					IJ.showStatus("Saving " + file.getName());
+					KymographExporter.write(file, KymographExporter.FORMATS[format], pixels, width, height, rowLengths);
+					IJ.showStatus("Saved " + file.getName());
+				}
+				catch (IOException e) {
+					IJ.handleException(e);
+				}
+			}
+		}.start();
+	}
+
+	/**
+	 * The rows of the current page; the first column holds the row number.
+	 */
+	protected class Model extends AbstractTableModel {
+		private final static long serialVersionUID = 1L;
+
+		@Override
+		public int getRowCount() {
+			return Math.min(PAGE_SIZE, height - page * PAGE_SIZE);
+		}
+
+		@Override
+		public int getColumnCount() {
+			return width + 1;
+		}
+
+		@Override
+		public String getColumnName(final int column) {
+			return column == 0 ? "Row" : Integer.toString(column - 1);
+		}
+
+		@Override
+		public Object getValueAt(final int row, final int column) {
+			final int y = page * PAGE_SIZE + row;
+			if (column == 0)
+				return y + 1;
+			final int x = column - 1;
+			if (rowLengths != null && x >= rowLengths[y])
+				return null;
+			return pixels[y * width + x];
+		}
+	}
+}
@@ -2,7 +2,6 @@ package sc.fiji.timelapse;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 
 import ij.gui.GenericDialog;
 import ij.gui.ImageCanvas;
@@ -12,17 +11,11 @@ import ij.gui.PointRoi;
 import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 
-import ij.measure.ResultsTable;
-
-import ij.plugin.CanvasResizer;
-import ij.plugin.Straightener;
-
 import ij.plugin.filter.PlugInFilter;
 
 import ij.plugin.frame.RoiManager;
 
 import ij.process.FloatPolygon;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
 import java.awt.Polygon;
@@ -36,7 +29,8 @@ import java.awt.event.MouseMotionListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 
-import java.lang.reflect.Field;
+import java.io.File;
+import java.io.IOException;
 
 import java.util.Hashtable;
 
@@ -80,6 +74,8 @@ public class LOI_Interpolator implements PlugInFilter {
 		gd.addCheckbox("show_spread_sheet", true);
 		gd.addCheckbox("add_to_ROI_manager", false);
 		gd.addCheckbox("export_straightened_stack", false);
+		gd.addStringField("export_values_to (leave empty for none)", "");
+		gd.addChoice("export_format", KymographExporter.FORMATS, KymographExporter.FORMATS[0]);
 		gd.showDialog();
 
 		image.setSlice(currentSlice);
@@ -97,13 +93,16 @@ public class LOI_Interpolator implements PlugInFilter {
 		boolean showSpreadsheet = gd.getNextBoolean();
 		boolean addToROIManager = gd.getNextBoolean();
 		boolean exportStraightenedStack = gd.getNextBoolean();
+		String exportPath = gd.getNextString().trim();
+		String exportFormat = gd.getNextChoice();
 
 		if (flipROIs)
 			for (int i = 0; i < rois.length; i++)
 				if (rois[i] != null)
 					rois[i] = flipROI(rois[i]);
 
-		showKymograph(showKymograph, showSpreadsheet, useFullLineWidth);
+		showKymograph(showKymograph, showSpreadsheet, useFullLineWidth,
+			exportPath.equals("") ? null : new File(exportPath), exportFormat);
 		if (addToROIManager) {
 			roiManager.runCommand("Select All");
 			roiManager.runCommand("Delete");
@@ -114,38 +113,9 @@ public class LOI_Interpolator implements PlugInFilter {
 				}
 			image.setSlice(currentSlice);
 		}
-		if (exportStraightenedStack) {
-			int lineWidth = Line.getWidth();
-			Straightener straightener = new Straightener();
-			int w = 1, h = lineWidth;
-			ImageStack stack = image.getStack();
-			ImageStack result = new ImageStack(w, h);
-			CanvasResizer resizer = new CanvasResizer();
-			try {
-				Field zeroFill = resizer.getClass().getDeclaredField("zeroFill");
-				zeroFill.setAccessible(true);
-				zeroFill.set(resizer, Boolean.TRUE);
-			} catch (Exception e) { e.printStackTrace(); }
-			for (int i = 0; i < rois.length; i++)
-				if (rois[i] == null)
-					result.addSlice("", new FloatProcessor(w, h));
-				else {
-					ImagePlus dummy = new ImagePlus("dummy", stack.getProcessor(i + 1));
-					dummy.setRoi(rois[i]);
-					ImageProcessor ip2 = straightener.straightenLine(dummy, lineWidth);
-					if (w < ip2.getWidth()) {
-						w = ip2.getWidth();
-						if (result.getSize() > 0)
-							result = resizer.expandStack(result, w, h, 0, 0);
-						else
-							result = new ImageStack(w, h);
-					}
-					else if (w > ip2.getWidth())
-						ip2 = resizer.expandImage(ip2, w, h, 0, 0);
-					result.addSlice("", ip2);
-				}
-			new ImagePlus("Straightened-" + image.getTitle(), result).show();
-		}
+		if (exportStraightenedStack)
+			new ImagePlus("Straightened-" + image.getTitle(),
+				new StraightenedStack(image, rois, Line.getWidth())).show();
 	}
 
 	protected int getRois() {
@@ -269,66 +239,38 @@ public class LOI_Interpolator implements PlugInFilter {
 		roiManager.getROIs().put(label, roi);
 	}
 
-	protected void showKymograph(boolean showImage, boolean showSpreadsheet, boolean useFullLineWidth) {
-		if (!showImage && !showSpreadsheet)
+	/**
+	 * Extracts the kymograph, and shows and/or exports it.
+	 *
+	 * @param exportFile the file to write the values to, or null
+	 * @param exportFormat one of {@link KymographExporter#FORMATS}
+	 */
+	protected void showKymograph(boolean showImage, boolean showSpreadsheet, boolean useFullLineWidth,
+			File exportFile, String exportFormat) {
+		if (!showImage && !showSpreadsheet && exportFile == null)
 			return;
-		int lineWidth = Line.getWidth();
-		int linesPerROI = useFullLineWidth ? lineWidth : 1;
-		int width = 0;
-		int height = rois.length * linesPerROI;
-		float[][] values = new float[height][];
-		Straightener straightener = new Straightener();
-		ImageStack stack = image.getStack();
-		for (int i = 0; i < rois.length; i++)
-			if (rois[i] == null)
-				for (int j = 0; j < linesPerROI; j++)
-					values[i * linesPerROI + j] = new float[0];
-			else {
-				// rois[i].isSplineFit() does not say whether it was fit for straightening...
-				rois[i].removeSplineFit();
-				ImagePlus dummy = new ImagePlus("dummy", stack.getProcessor(i + 1));
-				dummy.setRoi(rois[i]);
-				ImageProcessor ip = straightener.straightenLine(dummy, lineWidth);
-				int w = ip.getWidth();
-				if (!useFullLineWidth && lineWidth > 1)
-					// need to average explicitely
-					for (int j = 0; j < w; j++) {
-						float value = ip.getf(j, 0);
-						for (int k = 1; k < lineWidth; k++)
-							value += ip.getf(j, k);
-						ip.setf(j, 0, value / lineWidth);
-					}
-				float[] pixels = (float[])ip.getPixels();
-				for (int j = 0; j < linesPerROI; j++) {
-					values[i * linesPerROI + j] = new float[w];
-					System.arraycopy(pixels, j * w, values[i * linesPerROI + j], 0, w);
-				}
-				width = Math.max(ip.getWidth(), width);
-			}
-		if (width == 0) {
+		float[][] values = Kymograph.extractRows(image, rois, Line.getWidth(), useFullLineWidth);
+		if (Kymograph.getWidth(values) == 0) {
 			IJ.error("No ROIs!");
 			return;
 		}
+		ImagePlus kymograph = Kymograph.createImage("Kymograph of " + image.getTitle(), values);
 		if (showImage) {
-			float[] pixels = new float[width * height];
-			for (int i = 0; i < height; i++)
-				System.arraycopy(values[i], 0, pixels, i * width, values[i].length);
-			FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
-			ImagePlus image = new ImagePlus("Kymograph of " + this.image.getTitle(), fp);
-			image.show();
-			ImageCanvas canvas = image.getCanvas();
-			KymographMouseListener listener = new KymographMouseListener(canvas, this.image, rois);
+			kymograph.show();
+			ImageCanvas canvas = kymograph.getCanvas();
+			KymographMouseListener listener = new KymographMouseListener(canvas, image, rois);
 			canvas.addMouseMotionListener(listener);
-			image.getWindow().addWindowListener(listener);
+			kymograph.getWindow().addWindowListener(listener);
 		}
-		if (showSpreadsheet) {
-			ResultsTable table = new ResultsTable();
-			for (int i = 0; i < height; i++) {
-				table.incrementCounter();
-				for (int j = 0; j < values[i].length; j++)
-					table.addValue(j, values[i][j]);
-			}
-			table.show("Kymograph values of " + image.getTitle());
+		if (showSpreadsheet)
+			KymographTable.show("Kymograph values of " + image.getTitle(), kymograph);
+		if (exportFile != null) try {
+			IJ.showStatus("Saving " + exportFile.getName());
+			KymographExporter.write(exportFile, exportFormat, kymograph);
+			IJ.showStatus("Saved " + exportFile.getName());
+		}
+		catch (IOException e) {
+			IJ.handleException(e);
 		}
 	}
 
@@ -19,17 +19,12 @@ import ij.gui.Roi;
 import ij.io.RoiDecoder;
 import ij.io.RoiEncoder;
 
-import ij.measure.ResultsTable;
-
-import ij.plugin.CanvasResizer;
-import ij.plugin.Straightener;
-
 import ij.plugin.frame.RoiManager;
 
 import ij.process.FloatPolygon;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 
+import java.awt.EventQueue;
 import java.awt.List;
 import java.awt.Polygon;
 
@@ -48,9 +43,16 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-import java.lang.reflect.Field;
-
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -64,6 +66,18 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 	protected int x, y;
 	protected boolean moving, constructing;
 	protected PolygonRoiPublic roi;
+	protected ExecutorService interpolator;
+	protected final Map<Roi[], Interpolation> interpolations = new WeakHashMap<Roi[], Interpolation>();
+	protected final Map<ImagePlus, LiveKymograph> liveKymographs = new WeakHashMap<ImagePlus, LiveKymograph>();
+
+	/** the number of resampled keyframes to keep */
+	private final static int RESAMPLED_CACHE_SIZE = 256;
+	private final static Map<Vertices, Polygon> resampled = new LinkedHashMap<Vertices, Polygon>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Vertices, Polygon> eldest) {
+			return size() > RESAMPLED_CACHE_SIZE;
+		}
+	};
 
 	{
 		// for debugging, all custom tools can be removed to make space for this one if necessary
@@ -110,7 +124,7 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 
 			Roi[] rois = getRois(image);
 			int currentSlice = image.getCurrentSlice();
-			interpolateFrom(rois, currentSlice);
+			interpolateFrom(image, rois, currentSlice);
 		}
 		e.consume(); // prevent ImageJ from handling this event
 	}
@@ -168,8 +182,10 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 		image.setRoi(roi);
 		Roi[] rois = getRois(image);
 		int currentSlice = image.getCurrentSlice();
-		rois[currentSlice - 1] = roi;
-		interpolateFrom(rois, currentSlice);
+		synchronized (rois) {
+			rois[currentSlice - 1] = roi;
+		}
+		interpolateFrom(image, rois, currentSlice);
 		e.consume(); // prevent ImageJ from handling this event
 	}
 
@@ -256,6 +272,8 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 			showPeaks(getImagePlus(e));
 		else if (keyCode == KeyEvent.VK_L && (e.getModifiersEx() & KeyEvent.SHIFT_DOWN_MASK) != 0)
 			loadROIs(getImagePlus(e));
+		else if (keyCode == KeyEvent.VK_L)
+			showLiveKymograph(getImagePlus(e));
 		else
 			return;
 		e.consume();
@@ -290,6 +308,16 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 					IJ.error("Need ellipse ROIs!");
 			}
 		});
+		gd.addButton("Show live kymograph [l]", new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				gd.dispose();
+				ImagePlus image = WindowManager.getCurrentImage();
+				if (image == null)
+					IJ.error("Need an image!");
+				else
+					showLiveKymograph(image);
+			}
+		});
 		gd.addButton("Export straightened stack [e]", new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				gd.dispose();
@@ -348,26 +376,137 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 		return roi != null && (roi instanceof PolygonRoiPublic) && ((PolygonRoiPublic)roi).specifiedByUser;
 	}
 
-	protected void interpolateFrom(Roi[] rois, int currentSlice) {
-		boolean interpolated = false;
+	/**
+	 * Re-interpolates the ROIs between the keyframes before and after the
+	 * given (edited) keyframe.
+	 * <p>
+	 * Nothing happens if the keyframe's vertices did not change. Otherwise,
+	 * the interpolation runs in the background, so that the event thread is
+	 * not held up by long stacks; the edited keyframe itself is shown already,
+	 * and the shown slice is updated once its ROI is interpolated anew. Only
+	 * the ROIs whose vertices actually change are replaced, and only their
+	 * rows of the {@link LiveKymograph live kymograph} (if any) are updated.
+	 * </p>
+	 */
+	protected void interpolateFrom(final ImagePlus image, final Roi[] rois, final int currentSlice) {
+		final Polygon keyframe = getPolygon(rois, currentSlice - 1);
+		if (keyframe == null)
+			return;
+		final Interpolation interpolation = getInterpolation(rois);
+		if (!interpolation.set(currentSlice - 1, rois[currentSlice - 1], keyframe))
+			return;
+		// the keyframe is changed in place when dragged again: the live kymograph gets a copy
+		final Roi edited = (Roi)rois[currentSlice - 1].clone();
+		int from = 0, to = rois.length + 1;
 		for (int i = currentSlice - 1; i > 0; i--)
 			if (specifiedByUser(rois[i - 1])) {
-				interpolateROIs(rois, i, currentSlice);
-				interpolated = true;
+				from = i;
 				break;
 			}
-		if (!interpolated)
-			interpolateROIs(rois, 0, currentSlice);
-		else
-			interpolated = false;
 		for (int i = currentSlice + 1; i <= rois.length; i++)
 			if (specifiedByUser(rois[i - 1])) {
-				interpolateROIs(rois, currentSlice, i);
-				interpolated = true;
+				to = i;
 				break;
 			}
-		if (!interpolated)
-			interpolateROIs(rois, currentSlice, rois.length + 1);
+		final int previousSlice = from, nextSlice = to;
+		// take the neighbouring keyframes' vertices now, they might be edited while we interpolate
+		final Polygon previous = from > 0 ? getPolygon(rois, from - 1) : keyframe;
+		final Polygon next = to <= rois.length ? getPolygon(rois, to - 1) : keyframe;
+		getInterpolator().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final BitSet changed = new BitSet(rois.length);
+					changed.set(currentSlice - 1);
+					interpolateROIs(rois, previousSlice, currentSlice, previous, keyframe, interpolation, changed);
+					interpolateROIs(rois, currentSlice, nextSlice, keyframe, next, interpolation, changed);
+					final Roi[] current;
+					synchronized (rois) {
+						current = rois.clone();
+					}
+					current[currentSlice - 1] = edited;
+					updateLiveKymograph(image, current, changed);
+					EventQueue.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							interpolated(image, rois, changed);
+						}
+					});
+				}
+				catch (Exception e) {
+					IJ.handleException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called on the event thread when ROIs were interpolated anew.
+	 *
+	 * @param image the image
+	 * @param rois the image's ROIs
+	 * @param changed the indices of the ROIs that were replaced
+	 */
+	protected void interpolated(ImagePlus image, Roi[] rois, BitSet changed) {
+		if (map.get(image) != rois)
+			return;
+		int currentSlice = image.getCurrentSlice();
+		if (changed.get(currentSlice - 1) && !specifiedByUser(image.getRoi()))
+			setRoi(image, rois[currentSlice - 1]);
+	}
+
+	/**
+	 * Interpolates all ROIs between the keyframes anew, on the interpolation
+	 * thread (after any pending interpolation), and then shows the current
+	 * slice's ROI.
+	 *
+	 * @param image the image
+	 * @param rois the image's ROIs
+	 */
+	protected void interpolateAll(final ImagePlus image, final Roi[] rois) {
+		getInterpolator().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					interpolateROIs(rois);
+					updateLiveKymograph(image, rois, null);
+					EventQueue.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							if (map.get(image) == rois)
+								setRoi(image, rois[image.getCurrentSlice() - 1]);
+						}
+					});
+				}
+				catch (Exception e) {
+					IJ.handleException(e);
+				}
+			}
+		});
+	}
+
+	protected synchronized ExecutorService getInterpolator() {
+		if (interpolator == null)
+			interpolator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "LOI interpolation");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return interpolator;
+	}
+
+	protected Interpolation getInterpolation(Roi[] rois) {
+		synchronized (interpolations) {
+			Interpolation interpolation = interpolations.get(rois);
+			if (interpolation == null) {
+				interpolation = new Interpolation(rois.length);
+				interpolations.put(rois, interpolation);
+			}
+			return interpolation;
+		}
 	}
 
 	protected static void interpolateROIs(Roi[] rois) {
@@ -387,6 +526,28 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 			return;
 		Polygon poly1 = getPolygon(rois, from > 0 ? from - 1 : to - 1);
 		Polygon poly2 = getPolygon(rois, to <= rois.length ? to - 1 : from - 1);
+		interpolateROIs(rois, from, to, poly1, poly2, null, null);
+	}
+
+	/**
+	 * Interpolates the ROIs between two keyframes.
+	 *
+	 * @param rois the ROIs
+	 * @param from the slice of the first keyframe (0 if there is none)
+	 * @param to the slice of the second keyframe (one after the last slice if
+	 *          there is none)
+	 * @param poly1 the vertices of the first keyframe (left alone)
+	 * @param poly2 the vertices of the second keyframe (left alone)
+	 * @param interpolation the vertices of the current ROIs, to skip the ROIs
+	 *          that would not change, or null
+	 * @param changed receives the indices of the replaced ROIs, or null
+	 */
+	protected static void interpolateROIs(Roi[] rois, int from, int to, Polygon poly1, Polygon poly2,
+			Interpolation interpolation, BitSet changed) {
+		if (from >= to)
+			return;
+		poly1 = new Polygon(poly1.xpoints, poly1.ypoints, poly1.npoints);
+		poly2 = new Polygon(poly2.xpoints, poly2.ypoints, poly2.npoints);
 		normalizePointCounts(poly1, poly2);
 		for (int j = from; j < to - 1; j++) {
 			int[] x = new int[poly1.npoints];
@@ -395,8 +556,21 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 				x[k] = poly1.xpoints[k] + (j + 1 - from) * (poly2.xpoints[k] - poly1.xpoints[k]) / (to - from);
 				y[k] = poly1.ypoints[k] + (j + 1 - from) * (poly2.ypoints[k] - poly1.ypoints[k]) / (to - from);
 			}
-			rois[j] = new PolygonRoiPublic(x, y, poly1.npoints, Roi.POLYLINE);
-			((PolygonRoiPublic)rois[j]).updatePolygon();
+			Polygon vertices = new Polygon(x, y, poly1.npoints);
+			if (interpolation != null && interpolation.isCurrent(j, rois[j], vertices))
+				continue;
+			PolygonRoiPublic roi = new PolygonRoiPublic(x, y, poly1.npoints, Roi.POLYLINE);
+			roi.updatePolygon();
+			synchronized (rois) {
+				// the user might have made this slice a keyframe in the meantime
+				if (interpolation != null && specifiedByUser(rois[j]))
+					continue;
+				rois[j] = roi;
+			}
+			if (interpolation != null)
+				interpolation.set(j, roi, vertices);
+			if (changed != null)
+				changed.set(j);
 		}
 	}
 
@@ -408,7 +582,33 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 		}
 	}
 
+	/**
+	 * Resamples a polygon via its spline fit.
+	 * <p>
+	 * The results are cached: while a keyframe is edited, its neighbouring
+	 * keyframes are resampled over and over again to the same point count.
+	 * </p>
+	 */
 	protected static void resamplePolygon(Polygon polygon, int npoints) {
+		Vertices key = new Vertices(polygon, npoints);
+		Polygon cached;
+		synchronized (resampled) {
+			cached = resampled.get(key);
+		}
+		if (cached == null) {
+			cached = new Polygon(polygon.xpoints, polygon.ypoints, polygon.npoints);
+			fitAndResamplePolygon(cached, npoints);
+			synchronized (resampled) {
+				resampled.put(key, cached);
+			}
+		}
+		// the cached arrays are shared, but never written to
+		polygon.npoints = npoints;
+		polygon.xpoints = cached.xpoints;
+		polygon.ypoints = cached.ypoints;
+	}
+
+	protected static void fitAndResamplePolygon(Polygon polygon, int npoints) {
 		int[] x = new int[npoints], y = new int[npoints];
 
 		PolygonRoi roi = new PolygonRoi(polygon, Roi.POLYLINE);
@@ -455,58 +655,78 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 		return showKymograph(image, polygons, Line.getWidth(), showSpreadsheet, false);
 	}
 
-	protected static ImagePlus showKymograph(ImagePlus image, PolygonRoi[] rois, int lineWidth, boolean showSpreadsheet, boolean useFullLineWidth) {
-		int linesPerROI = useFullLineWidth ? lineWidth : 1;
-		int width = 0;
-		int height = rois.length * linesPerROI;
-		float[][] values = new float[height][];
-		Straightener straightener = new Straightener();
-		ImageStack stack = image.getStack();
-		for (int i = 0; i < rois.length; i++)
-			if (rois[i] == null)
-				for (int j = 0; j < linesPerROI; j++)
-					values[i * linesPerROI + j] = new float[0];
-			else {
-				// rois[i].isSplineFit() does not say whether it was fit for straightening...
-				rois[i].removeSplineFit();
-				ImagePlus dummy = new ImagePlus("dummy", stack.getProcessor(i + 1));
-				dummy.setRoi(rois[i]);
-				ImageProcessor ip = straightener.straightenLine(dummy, lineWidth);
-				int w = ip.getWidth();
-				if (!useFullLineWidth && lineWidth > 1)
-					// need to average explicitely
-					for (int j = 0; j < w; j++) {
-						float value = ip.getf(j, 0);
-						for (int k = 1; k < lineWidth; k++)
-							value += ip.getf(j, k);
-						ip.setf(j, 0, value / lineWidth);
+	/**
+	 * Shows a kymograph that is updated whenever the LOIs are edited.
+	 * <p>
+	 * The kymograph is extracted on the interpolation thread, after any
+	 * pending interpolation, so that it starts from the interpolated LOIs and
+	 * receives all later updates.
+	 * </p>
+	 */
+	protected void showLiveKymograph(final ImagePlus image) {
+		if (image == null)
+			return;
+		final Roi[] rois = getRois(image);
+		if (rois == null)
+			return;
+		final int lineWidth = Line.getWidth();
+		getInterpolator().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Roi[] current;
+					synchronized (rois) {
+						current = rois.clone();
 					}
-				float[] pixels = (float[])ip.getPixels();
-				for (int j = 0; j < linesPerROI; j++) {
-					values[i * linesPerROI + j] = new float[w];
-					System.arraycopy(pixels, j * w, values[i * linesPerROI + j], 0, w);
+					final LiveKymograph kymograph = new LiveKymograph(image, current, lineWidth);
+					synchronized (liveKymographs) {
+						liveKymographs.put(image, kymograph);
+					}
+					// queued before the patches of any later update
+					EventQueue.invokeLater(new Runnable() {
+						@Override
+						public void run() {
+							kymograph.show();
+						}
+					});
+				}
+				catch (Exception e) {
+					IJ.handleException(e);
 				}
-				width = Math.max(ip.getWidth(), width);
 			}
-		if (width == 0) {
-			IJ.error("No ROIs!");
-			return null;
-		}
-		if (showSpreadsheet) {
-			ResultsTable table = new ResultsTable();
-			for (int i = 0; i < height; i++) {
-				table.incrementCounter();
-				for (int j = 0; j < values[i].length; j++)
-					table.addValue(j, values[i][j]);
+		});
+	}
+
+	/**
+	 * Patches the live kymograph of an image (if it is shown).
+	 *
+	 * @param image the image
+	 * @param rois the image's ROIs
+	 * @param changed the indices of the changed ROIs, or null if all ROIs
+	 *          might have changed
+	 */
+	protected void updateLiveKymograph(ImagePlus image, Roi[] rois, BitSet changed) {
+		LiveKymograph kymograph;
+		synchronized (liveKymographs) {
+			kymograph = liveKymographs.get(image);
+			if (kymograph != null && kymograph.isClosed()) {
+				liveKymographs.remove(image);
+				kymograph = null;
 			}
-			table.show("Kymograph values of " + image.getTitle());
 		}
+		if (kymograph != null)
+			kymograph.update(rois, changed);
+	}
 
-		float[] pixels = new float[width * height];
-		for (int i = 0; i < height; i++)
-			System.arraycopy(values[i], 0, pixels, i * width, values[i].length);
-		FloatProcessor fp = new FloatProcessor(width, height, pixels, null);
-		ImagePlus result = new ImagePlus("Kymograph of " + image.getTitle(), fp);
+	protected static ImagePlus showKymograph(ImagePlus image, PolygonRoi[] rois, int lineWidth, boolean showSpreadsheet, boolean useFullLineWidth) {
+		float[][] values = Kymograph.extractRows(image, rois, lineWidth, useFullLineWidth);
+		if (Kymograph.getWidth(values) == 0) {
+			IJ.error("No ROIs!");
+			return null;
+		}
+		ImagePlus result = Kymograph.createImage("Kymograph of " + image.getTitle(), values);
+		if (showSpreadsheet)
+			KymographTable.show("Kymograph values of " + image.getTitle(), result);
 		result.show();
 		ImageCanvas canvas = result.getCanvas();
 		KymographMouseListener listener = new KymographMouseListener(canvas, image, rois);
@@ -557,13 +777,13 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 				else
 					continue;
 				((PolygonRoiPublic)roi).specifiedByUser = true;
-				rois[index] = roi;
+				synchronized (rois) {
+					rois[index] = roi;
+				}
 			}
 		}
 
-		interpolateROIs(rois);
-
-		setRoi(image, rois[image.getCurrentSlice() - 1]);
+		interpolateAll(image, rois);
 	}
 
 	@Override
@@ -633,19 +853,40 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 			in.close();
 			map.put(image, rois);
 
-			interpolateROIs(rois);
-
-			setRoi(image, rois[image.getCurrentSlice() - 1]);
+			interpolateAll(image, rois);
 		}
 		catch (IOException e) {
 			IJ.handleException(e);
 		}
 	}
 
-	protected void showStraightenedStack(ImagePlus image) {
-		ImagePlus result = getStraightenedStack(image);
-		if (result != null)
-			result.show();
+	/**
+	 * Shows the straightened stack as a virtual stack: the slices are only
+	 * straightened when they are shown, with the current LOIs.
+	 * <p>
+	 * The stack is created on the interpolation thread, after any pending
+	 * interpolation, as all LOIs are fitted to determine its width.
+	 * </p>
+	 */
+	protected void showStraightenedStack(final ImagePlus image) {
+		if (image == null)
+			return;
+		final Roi[] rois = getRois(image);
+		if (rois == null)
+			return;
+		final int lineWidth = Line.getWidth();
+		getInterpolator().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					new ImagePlus("Straightened-" + image.getTitle(),
+						new StraightenedStack(image, rois, lineWidth)).show();
+				}
+				catch (Exception e) {
+					IJ.handleException(e);
+				}
+			}
+		});
 	}
 
 	protected ImagePlus getStraightenedStack(ImagePlus image) {
@@ -657,37 +898,7 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 	protected static ImagePlus getStraightenedStack(ImagePlus image, int lineWidth, Roi[] rois) {
 		if (rois == null)
 			return null;
-
-		Straightener straightener = new Straightener();
-		int w = 1, h = lineWidth;
-		ImageStack stack = image.getStack();
-		ImageStack result = new ImageStack(w, h);
-
-		CanvasResizer resizer = new CanvasResizer();
-		try {
-			Field zeroFill = resizer.getClass().getDeclaredField("zeroFill");
-			zeroFill.setAccessible(true);
-			zeroFill.set(resizer, Boolean.TRUE);
-		} catch (Exception e) { e.printStackTrace(); }
-
-		for (int i = 0; i < rois.length; i++)
-			if (rois[i] == null)
-				result.addSlice("", new FloatProcessor(w, h));
-			else {
-				ImagePlus dummy = new ImagePlus("dummy", stack.getProcessor(i + 1));
-				dummy.setRoi(rois[i]);
-				ImageProcessor ip2 = straightener.straightenLine(dummy, lineWidth);
-				if (w < ip2.getWidth()) {
-					w = ip2.getWidth();
-					if (result.getSize() > 0)
-						result = resizer.expandStack(result, w, h, 0, 0);
-					else
-						result = new ImageStack(w, h);
-				}
-				else if (w > ip2.getWidth())
-					ip2 = resizer.expandImage(ip2, w, h, 0, 0);
-				result.addSlice("", ip2);
-			}
+		ImageStack result = new StraightenedStack(image, rois, lineWidth).toImageStack();
 		return new ImagePlus("Straightened-" + image.getTitle(), result);
 	}
 
@@ -715,4 +926,75 @@ public class LOI_Interpolator_Tool extends AbstractTrackingTool
 				polygons[i] = (PolygonRoi)rois[i];
 		return polygons;
 	}
+
+	/**
+	 * The vertices every ROI of a stack was last interpolated from (or set
+	 * to, for keyframes), together with the ROI, so that unchanged ROIs can
+	 * be left alone.
+	 */
+	protected static class Interpolation {
+		private final Roi[] rois;
+		private final Polygon[] vertices;
+
+		public Interpolation(int size) {
+			rois = new Roi[size];
+			vertices = new Polygon[size];
+		}
+
+		public synchronized boolean isCurrent(int index, Roi roi, Polygon polygon) {
+			Polygon current = vertices[index];
+			return roi != null && rois[index] == roi && current.npoints == polygon.npoints
+				&& equals(current.xpoints, polygon.xpoints, polygon.npoints)
+				&& equals(current.ypoints, polygon.ypoints, polygon.npoints);
+		}
+
+		/**
+		 * Records the vertices of a ROI.
+		 *
+		 * @return whether the ROI or its vertices changed
+		 */
+		public synchronized boolean set(int index, Roi roi, Polygon polygon) {
+			if (isCurrent(index, roi, polygon))
+				return false;
+			rois[index] = roi;
+			vertices[index] = new Polygon(polygon.xpoints, polygon.ypoints, polygon.npoints);
+			return true;
+		}
+
+		private static boolean equals(int[] a, int[] b, int n) {
+			for (int i = 0; i < n; i++)
+				if (a[i] != b[i])
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * The vertices of a polygon, and a point count, as a key.
+	 */
+	protected static class Vertices {
+		private final int[] x, y;
+		private final int npoints;
+		private final int hashCode;
+
+		public Vertices(Polygon polygon, int npoints) {
+			x = Arrays.copyOf(polygon.xpoints, polygon.npoints);
+			y = Arrays.copyOf(polygon.ypoints, polygon.npoints);
+			this.npoints = npoints;
+			hashCode = 31 * (31 * npoints + Arrays.hashCode(x)) + Arrays.hashCode(y);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Vertices))
+				return false;
+			Vertices vertices = (Vertices)other;
+			return npoints == vertices.npoints && Arrays.equals(x, vertices.x) && Arrays.equals(y, vertices.y);
+		}
+	}
 }
@@ -0,0 +1,211 @@
+package sc.fiji.timelapse;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import ij.gui.ImageCanvas;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.EventQueue;
+
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+
+import java.util.BitSet;
+
+/**
+ * A kymograph that follows the edits of the LOIs.
+ * <p>
+ * Unlike the kymograph shown by {@link LOI_Interpolator_Tool#showKymograph},
+ * which is extracted once, this one is patched in place whenever LOIs change:
+ * only the rows of the slices whose {@link SamplingPlan} changed are
+ * straightened again (interpolated LOIs that did not move keep their plan),
+ * so that the kymograph is up to date right after an edit, even for long
+ * stacks.
+ * </p>
+ * <p>
+ * The rows are averaged over the line width, and padded with zeros like
+ * those of any other {@link Kymograph}; the kymograph is widened when an LOI
+ * grows beyond its width.
+ * </p>
+ * <p>
+ * The rows are straightened on the thread calling {@link #update} (the LOI
+ * interpolation thread), but the kymograph is patched on the event dispatch
+ * thread, in the order of the updates, as it may be shown.
+ * </p>
+ */
+public class LiveKymograph {
+	protected final ImagePlus image;
+	protected final int lineWidth;
+	protected final ImagePlus kymograph;
+	/** the plans the rows were straightened with */
+	protected final SamplingPlan[] plans;
+	/** the LOIs of the rows, for the {@link KymographMouseListener}; changed on the event dispatch thread only */
+	protected final PolygonRoi[] polygons;
+	/** changed on the event dispatch thread only, once the kymograph is constructed */
+	protected int[] rowLengths;
+	protected volatile boolean closed;
+
+	/**
+	 * Extracts the kymograph.
+	 *
+	 * @param image the image whose slices are straightened
+	 * @param rois the LOI per slice (or null where there is none)
+	 * @param lineWidth the line width
+	 */
+	public LiveKymograph(final ImagePlus image, final Roi[] rois, final int lineWidth) {
+		this.image = image;
+		this.lineWidth = lineWidth;
+		plans = new SamplingPlan[rois.length];
+		polygons = new PolygonRoi[rois.length];
+		rowLengths = new int[rois.length];
+		kymograph = new ImagePlus("Live kymograph of " + image.getTitle(), new FloatProcessor(1, rois.length));
+		Kymograph.setRowLengths(kymograph, rowLengths);
+		// nobody else knows the kymograph yet, so it can be patched right away
+		update(rois, null, false);
+		kymograph.getProcessor().resetMinAndMax();
+	}
+
+	/**
+	 * Shows the kymograph; moving the mouse over it shows the corresponding
+	 * slice and point of the image.
+	 */
+	public void show() {
+		kymograph.show();
+		final ImageCanvas canvas = kymograph.getCanvas();
+		final KymographMouseListener listener = new KymographMouseListener(canvas, image, polygons);
+		canvas.addMouseMotionListener(listener);
+		kymograph.getWindow().addWindowListener(listener);
+		kymograph.getWindow().addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(final WindowEvent e) {
+				closed = true;
+			}
+		});
+	}
+
+	/**
+	 * @return whether the kymograph's window was closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public ImagePlus getImagePlus() {
+		return kymograph;
+	}
+
+	/**
+	 * Patches the rows of the slices whose LOIs changed.
+	 *
+	 * @param rois the LOI per slice (or null where there is none); the LOIs
+	 *          are kept for the mouse listener, so LOIs that are still being
+	 *          edited must be passed as copies
+	 * @param slices the indices of the slices whose LOIs might have changed,
+	 *          or null to check all slices
+	 * @return the number of rows that were straightened again
+	 */
+	public int update(final Roi[] rois, final BitSet slices) {
+		return update(rois, slices, true);
+	}
+
+	/**
+	 * Straightens the rows of the slices whose LOIs changed, and patches the
+	 * kymograph, later on the event dispatch thread if so requested.
+	 */
+	protected synchronized int update(final Roi[] rois, final BitSet slices, final boolean later) {
+		final int count = Math.min(rois.length, plans.length);
+		final BitSet candidates = new BitSet(count);
+		if (slices == null)
+			candidates.set(0, count);
+		else
+			candidates.or(slices.get(0, count));
+		// the plans tell which rows actually change
+		final int[] indices = new int[candidates.cardinality()];
+		final PolygonRoi[] changed = new PolygonRoi[indices.length];
+		for (int i = candidates.nextSetBit(0), j = 0; i >= 0; i = candidates.nextSetBit(i + 1), j++) {
+			changed[j] = rois[i] instanceof PolygonRoi ? (PolygonRoi)rois[i] : null;
+			indices[j] = i;
+		}
+
+		// make the plans (the expensive part) and straighten the rows concurrently
+		final float[][] rows = new float[indices.length][];
+		final ImageStack stack = image.getStack();
+		Parallel.forEach(0, indices.length, new Parallel.Body() {
+			@Override
+			public void run(final int j) {
+				final int i = indices[j];
+				final SamplingPlan plan = changed[j] == null ? null : SamplingPlan.get(changed[j]);
+				if (plan == plans[i])
+					return;
+				plans[i] = plan;
+				rows[j] = plan == null ? new float[0] : plan.getProfile(Kymograph.getProcessor(stack, i + 1), lineWidth);
+			}
+		});
+
+		int patched = 0;
+		for (final float[] row : rows)
+			if (row != null)
+				patched++;
+		if (!later)
+			patch(indices, changed, rows);
+		else
+			EventQueue.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					patch(indices, changed, rows);
+				}
+			});
+		return patched;
+	}
+
+	/**
+	 * Copies the straightened rows into the kymograph.
+	 *
+	 * @param indices the indices of the rows
+	 * @param changed the rows' LOIs
+	 * @param rows the rows, or null where the plan did not change
+	 */
+	protected void patch(final int[] indices, final PolygonRoi[] changed, final float[][] rows) {
+		int width = kymograph.getWidth(), patched = 0;
+		for (final float[] row : rows)
+			if (row != null)
+				width = Math.max(width, row.length);
+		if (width > kymograph.getWidth())
+			widen(width);
+		final float[] pixels = (float[])kymograph.getProcessor().getPixels();
+		for (int j = 0; j < indices.length; j++) {
+			polygons[indices[j]] = changed[j];
+			if (rows[j] == null)
+				continue;
+			final int offset = indices[j] * width;
+			System.arraycopy(rows[j], 0, pixels, offset, rows[j].length);
+			for (int x = rows[j].length; x < rowLengths[indices[j]]; x++)
+				pixels[offset + x] = 0;
+			rowLengths[indices[j]] = rows[j].length;
+			patched++;
+		}
+		if (patched > 0)
+			kymograph.updateAndDraw();
+	}
+
+	/**
+	 * Pads all rows to a larger width.
+	 */
+	protected void widen(final int width) {
+		final int oldWidth = kymograph.getWidth(), height = kymograph.getHeight();
+		final ImageProcessor old = kymograph.getProcessor();
+		final float[] oldPixels = (float[])old.getPixels();
+		final float[] pixels = new float[width * height];
+		for (int y = 0; y < height; y++)
+			System.arraycopy(oldPixels, y * oldWidth, pixels, y * width, oldWidth);
+		final FloatProcessor ip = new FloatProcessor(width, height, pixels, null);
+		ip.setMinAndMax(old.getMin(), old.getMax());
+		kymograph.setProcessor(ip);
+		Kymograph.setRowLengths(kymograph, rowLengths);
+	}
+}
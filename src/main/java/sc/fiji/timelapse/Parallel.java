@@ -0,0 +1,138 @@
+package sc.fiji.timelapse;
+
+import ij.Prefs;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Distributes the iterations of a loop over worker threads.
+ * <p>
+ * Iterations are handed out one at a time, so uneven work per index (e.g.
+ * kymograph rows of different lengths) balances itself out.
+ * </p>
+ * <p>
+ * The workers are taken from a shared pool of daemon threads, which lives as
+ * long as the application, so that the per-thread scratch buffers of the
+ * callers (see e.g. {@link FFT}) survive from one call to the next. The
+ * calling thread works on the loop, too: nested loops therefore complete
+ * even when all pooled threads are busy with the outer loop.
+ * </p>
+ */
+public class Parallel {
+	private static ThreadPoolExecutor pool;
+
+	public interface Body {
+		void run(int index);
+	}
+
+	public static int getThreadCount() {
+		return Math.max(1, Prefs.getThreads());
+	}
+
+	public static void forEach(final int from, final int to, final Body body) {
+		forEach(from, to, getThreadCount(), body);
+	}
+
+	public static void forEach(final int from, final int to, int threadCount, final Body body) {
+		threadCount = Math.min(threadCount, to - from);
+		if (threadCount <= 1) {
+			for (int i = from; i < to; i++)
+				body.run(i);
+			return;
+		}
+
+		final Loop loop = new Loop(from, to, body);
+		final ThreadPoolExecutor pool = getPool(threadCount - 1);
+		for (int t = 1; t < threadCount; t++)
+			pool.execute(loop);
+		loop.run();
+		loop.await();
+	}
+
+	protected static synchronized ThreadPoolExecutor getPool(final int size) {
+		if (pool == null)
+			pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "Time Lapse worker " + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		else if (pool.getMaximumPoolSize() < size) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		}
+		return pool;
+	}
+
+	/**
+	 * The iterations of one loop, run by any number of threads.
+	 * <p>
+	 * Every index is claimed exactly once, and counted as finished once its
+	 * body returned (or was skipped because another iteration failed), so
+	 * that the caller can wait for exactly the iterations in progress; pooled
+	 * threads that only start after the last index was claimed simply return.
+	 * </p>
+	 */
+	private static class Loop implements Runnable {
+		private final int to, total;
+		private final Body body;
+		private final AtomicInteger next;
+		private final AtomicInteger finished = new AtomicInteger();
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		public Loop(final int from, final int to, final Body body) {
+			this.to = to;
+			this.body = body;
+			total = to - from;
+			next = new AtomicInteger(from);
+		}
+
+		@Override
+		public void run() {
+			for (int i = next.getAndIncrement(); i < to; i = next.getAndIncrement()) try {
+				if (failure.get() == null)
+					body.run(i);
+			} catch (Throwable e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				if (finished.incrementAndGet() == total)
+					synchronized (this) {
+						notifyAll();
+					}
+			}
+		}
+
+		public void await() {
+			boolean interrupted = false;
+			synchronized (this) {
+				while (finished.get() < total) try {
+					wait();
+				} catch (InterruptedException e) {
+					// skip the remaining iterations, but wait for those in progress
+					failure.compareAndSet(null, e);
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+
+			final Throwable e = failure.get();
+			if (e instanceof RuntimeException)
+				throw (RuntimeException)e;
+			if (e instanceof Error)
+				throw (Error)e;
+			if (e != null)
+				throw new RuntimeException(e);
+		}
+	}
+}
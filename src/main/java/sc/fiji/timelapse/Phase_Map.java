@@ -1,16 +1,22 @@
 package sc.fiji.timelapse;
 
+import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
+import ij.gui.Overlay;
 import ij.gui.Plot;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
 import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.LUT;
 
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * This plugin generates a phase map given a kymograph.
@@ -27,32 +33,56 @@ public class Phase_Map implements PlugInFilter {
 	private double octaveNumber = 4, voicesPerOctave = 50;
 	private double gaussSigma = 2, x0 = 100, x1 = 400, sigma0 = 1, sigma1 = 1, subtractionPoint = 50;
 	private boolean plotWaveCounts, showProfileStack, anchorProfileStack, cutTailsFromProfileStack, showPhaseProfileMap;
+	private boolean detectWaves;
+	private boolean recursiveGauss;
+	private int linesPerTimepoint = 1;
+	private boolean quantizePhase;
+	private double processedFraction;
+	private double maximalWaveDisplacement = 10;
 
 	private ImagePlus imp;
 
-	private double phase(double[] data, int dataSize, double s, int tau) {
-		double wR = 0, wI = 0;
+	/**
+	 * The Morlet wavelet at a given scale, tabulated for all possible
+	 * distances between sample and center so that columns and parallel lines
+	 * can share it instead of evaluating exp/cos/sin for every product.
+	 */
+	private static class GaborKernel {
+		private final int maxDistance;
+		private final double[] gaborR, gaborI;
+
+		public GaborKernel(final double s, final int dataSize) {
+			maxDistance = Math.max(0, dataSize - 1);
+			gaborR = new double[2 * maxDistance + 1];
+			gaborI = new double[2 * maxDistance + 1];
+			for (int d = -maxDistance; d <= maxDistance; d++) {
+				double u = d / s;
+				double decay = Math.exp(-u * u / 2);
+				gaborR[d + maxDistance] = Math.cos(6 * u) * decay;
+				gaborI[d + maxDistance] = Math.sin(6 * u) * decay;
+
+				// normalization unnecessary:
+				// gaborR /= Math.pow(Math.PI, 1.0 / 4);
+				// gaborI /= Math.pow(Math.PI, 1.0 / 4);
+			}
+		}
+
+		public double phase(final double[] data, final int dataSize, final int tau) {
+			double wR = 0, wI = 0;
 
-		for (int i = 0; i < dataSize; i++) {
-			double u = (i - tau) / s;
-			double decay = Math.exp(-u * u / 2);
-			double gaborR = Math.cos(6 * u) * decay, gaborI = Math.sin(6 * u) * decay;
+			for (int i = 0, k = maxDistance - tau; i < dataSize; i++, k++) {
+				wR += data[i] * gaborR[k];
+				wI += data[i] * -gaborI[k];
+			}
 
 			// normalization unnecessary:
-			// gaborR /= Math.pow(Math.PI, 1.0 / 4);
-			// gaborI /= Math.pow(Math.PI, 1.0 / 4);
+			// wR /= Math.sqrt(s);
+			// wI /= Math.sqrt(s);
 
-			wR += data[i] * gaborR;
-			wI += data[i] * -gaborI;
+			return Math.atan2(wI, wR);
+			//return Math.sqrt(wI * wI + wR * wR);
+			//return wI;
 		}
-
-		// normalization unnecessary:
-		// wR /= Math.sqrt(s);
-		// wI /= Math.sqrt(s);
-
-		return Math.atan2(wI, wR);
-		//return Math.sqrt(wI * wI + wR * wR);
-		//return wI;
 	}
 
 	protected static int[] gaussianLUT()
@@ -94,171 +124,181 @@ public class Phase_Map implements PlugInFilter {
 		return new LUT(red, green, blue);
 	}
 
-	protected static class Gauss1D {
-		private final int radius;
-		private final double[] kernel;
-
-		public Gauss1D(double sigma) {
-			radius = (int)Math.ceil(sigma * 2);
-			kernel = new double[1 + 2 * radius];
-			double total = 0;
-			for (int i = -radius; i <= radius; i++) {
-				kernel[i + radius] = Math.exp(-0.5 * i * i / sigma / sigma);
-				total += kernel[i + radius];
-			}
-			for (int i = 0; i < kernel.length; i++) {
-				kernel[i] /= total;
-			}
-		}
+	/**
+	 * Computes the phase map of a kymograph.
+	 * <p>
+	 * Kymographs generated with the full line width have <i>lines</i>
+	 * consecutive rows per timepoint, one for each parallel line of the LOI. In
+	 * that case, the phase is computed for every line (sharing the wavelet
+	 * kernel of each column) and combined by the circular mean.
+	 * </p>
+	 * <p>
+	 * Only the valid part of the kymograph is processed: if the row lengths are
+	 * known (see {@link Kymograph#getRowLengths(ImagePlus)}), the zero-padding
+	 * is neither blurred nor transformed; otherwise, the valid part of each
+	 * column ends where the blurred signal drops below 2.
+	 * </p>
+	 *
+	 * @param kymograph the kymograph
+	 * @param lines the number of rows per timepoint
+	 * @param kymographRowLengths the valid length of each kymograph row, or null
+	 * @param rowLength receives the length of the valid data per timepoint
+	 * @param dispersion if non-null, receives the circular variance (0 = all
+	 *          lines agree, 1 = uniformly spread phases) across the lines
+	 * @param quantized whether to store the phases as 16-bit codes (see
+	 *          {@link QuantizedPhase})
+	 * @return the phase map pixels with one row per timepoint
+	 */
+	private Object phaseMap(final ImageProcessor kymograph, final int lines, final int[] kymographRowLengths,
+			final int[] rowLength, final float[] dispersion, final boolean quantized) {
+		final int width = kymograph.getWidth(), height = kymograph.getHeight() / lines;
+		final FloatProcessor fp = (FloatProcessor)(kymograph instanceof FloatProcessor ?
+				kymograph.duplicate() : kymograph.convertToFloat());
+		final float[] pixels = (float[]) fp.getPixels();
+		final Object output = QuantizedPhase.createPixels(width * height, quantized);
 
-		public void gauss(final double[] data, final int offset, final int dataSize) {
-			final double[] result = new double[dataSize];
-			if (result.length < kernel.length) {
-				throw new IllegalArgumentException("Too few data");
-			}
-			// mirror out-of-bounds strategy
-			for (int i = 0; i < radius; i++) {
-				double value = 0;
-				for (int j = -radius, k = radius + 1 - i; j < -i; j++, k--) {
-					value += data[offset + k] * kernel[radius + j];
-				}
-				for (int j = -i; j <= radius; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
-				}
-				result[i] = value;
-			}
-			for (int i = radius; i < dataSize - radius; i++) {
-				double value = 0;
-				for (int j = -radius; j <= radius; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
+		// gauss along x
+		final GaussianSmoother gauss = new GaussianSmoother(gaussSigma, recursiveGauss);
+		gauss.smoothRows(pixels, width, height * lines, kymographRowLengths, Parallel.getThreadCount());
+
+		// valid extent of the columns: with known row lengths, a column of
+		// line j ends at the first timepoint whose row does not reach it
+		final int[][] minRowLength = new int[lines][height];
+		for (int j = 0; j < lines; j++) {
+			for (int t = 0; t < height; t++) {
+				final int row = t * lines + j;
+				int curWidth = width;
+				if (kymographRowLengths != null) {
+					curWidth = kymographRowLengths[row];
 				}
-				result[i] = value;
-			}
-			// mirror out-of-bounds strategy
-			for (int i = dataSize - radius; i < dataSize; i++) {
-				double value = 0;
-				for (int j = -radius; j < dataSize - i; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
+				else {
+					for (int x = 0; x < width; x++) {
+						if (pixels[x + row * width] < 2) {
+							curWidth = x;
+							break;
+						}
+					}
 				}
-				for (int j = dataSize - i, k = dataSize - 1; j <= radius; j++, k--) {
-					value += data[offset + k] * kernel[radius + j];
+				if (j == 0 || rowLength[t] < curWidth) {
+					rowLength[t] = curWidth;
 				}
-				result[i] = value;
+				minRowLength[j][t] = t == 0 ? curWidth : Math.min(curWidth, minRowLength[j][t - 1]);
 			}
-			System.arraycopy(result, 0, data, offset, dataSize);
 		}
 
-		public void gauss(final float[] data, final int offset, final int dataSize) {
-			final float[] result = new float[dataSize];
-			if (result.length < kernel.length) {
-				throw new IllegalArgumentException("Too few data");
-			}
-			// mirror out-of-bounds strategy
-			for (int i = 0; i < radius; i++) {
-				float value = 0;
-				for (int j = -radius, k = radius + 1 - i; j < -i; j++, k--) {
-					value += data[offset + k] * kernel[radius + j];
-				}
-				for (int j = -i; j <= radius; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
+		final long[] processed = new long[width];
+		Parallel.forEach(0, width, new Parallel.Body() {
+			@Override
+			public void run(final int x) {
+				final int[] dataSize = new int[lines];
+				int maxDataSize = 0;
+				for (int j = 0; j < lines; j++) {
+					dataSize[j] = kymographRowLengths != null ?
+						columnLength(minRowLength[j], x) : height;
+					maxDataSize = Math.max(maxDataSize, dataSize[j]);
 				}
-				result[i] = value;
-			}
-			for (int i = radius; i < dataSize - radius; i++) {
-				float value = 0;
-				for (int j = -radius; j <= radius; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
+				if (maxDataSize == 0) {
+					return;
 				}
-				result[i] = value;
-			}
-			// mirror out-of-bounds strategy
-			for (int i = dataSize - radius; i < dataSize; i++) {
-				float value = 0;
-				for (int j = -radius; j < dataSize - i; j++) {
-					value += data[offset + i + j] * kernel[radius + j];
+
+				final double[][] data = new double[lines][maxDataSize];
+				maxDataSize = 0;
+				for (int j = 0; j < lines; j++) {
+					for (int t = 0; t < dataSize[j]; t++) {
+						data[j][t] = pixels[x + (t * lines + j) * width];
+						if (kymographRowLengths == null && data[j][t] < 2) {
+							dataSize[j] = t;
+							break;
+						}
+					}
+					maxDataSize = Math.max(maxDataSize, dataSize[j]);
+					processed[x] += dataSize[j];
 				}
-				for (int j = dataSize - i, k = dataSize - 1; j <= radius; j++, k--) {
-					value += data[offset + k] * kernel[radius + j];
+				if (maxDataSize == 0) {
+					return;
 				}
-				result[i] = value;
-			}
-			System.arraycopy(result, 0, data, offset, dataSize);
-		}
-	}
-
-	private float[] phaseMap(final ImageProcessor kymograph, final boolean showProfileMap) {
-		final int width = kymograph.getWidth(), height = kymograph.getHeight();
-		final FloatProcessor fp = (FloatProcessor)(kymograph instanceof FloatProcessor ?
-				kymograph.duplicate() : kymograph.convertToFloat());
-		final float[] pixels = (float[]) fp.getPixels();
-		float[] output = new float[width * height];
-		final double[] data = new double[height];
-
-		final int[] rowLength = new int[height];
 
-		// gauss along x
-		final Gauss1D gauss = new Gauss1D(gaussSigma);
-		for (int t = 0; t < height; t++) {
-			gauss.gauss(pixels, t * width, width);
-		}
-
-		for (int x = 0; x < width; x++) {
-			double voiceNumber = x < x0 ? sigma0 : x > x1 ? sigma1 : sigma0 + (x - x0) * (sigma1 - sigma0) / (x1 - x0);
-			double s = Math.pow(2, octaveNumber - 1 + voiceNumber / voicesPerOctave) / FOURIER_PERIOD;
+				double voiceNumber = x < x0 ? sigma0 : x > x1 ? sigma1 : sigma0 + (x - x0) * (sigma1 - sigma0) / (x1 - x0);
+				double s = Math.pow(2, octaveNumber - 1 + voiceNumber / voicesPerOctave) / FOURIER_PERIOD;
+				final GaborKernel kernel = new GaborKernel(s, maxDataSize);
+				if (lines == 1) {
+					for (int t = 0; t < dataSize[0]; t++) {
+						QuantizedPhase.set(output, x + t * width, (float)kernel.phase(data[0], dataSize[0], t));
+					}
+					return;
+				}
 
-			int dataSize = height;
-			for (int t = 0; t < height; t++) {
-				data[t] = pixels[x + t * width];
-				if (data[t] < 2) {
-					dataSize = t;
-					break;
+				for (int t = 0; t < maxDataSize; t++) {
+					double sumCos = 0, sumSin = 0;
+					int count = 0;
+					for (int j = 0; j < lines; j++) {
+						if (t >= dataSize[j]) continue;
+						final double phase = kernel.phase(data[j], dataSize[j], t);
+						sumCos += Math.cos(phase);
+						sumSin += Math.sin(phase);
+						count++;
+					}
+					if (count == 0) continue;
+					QuantizedPhase.set(output, x + t * width, (float)Math.atan2(sumSin, sumCos));
+					if (dispersion != null) {
+						dispersion[x + t * width] = (float)(1 - Math.sqrt(sumCos * sumCos + sumSin * sumSin) / count);
+					}
 				}
 			}
-			for (int t = 0; t < dataSize; t++) {
-				output[x + t * width] = (float)phase(data, dataSize, s, t);
-			}
-		}
+		});
 
-		if (!showProfileMap) {
-			return output;
+		long total = 0;
+		for (final long count : processed) {
+			total += count;
 		}
+		processedFraction = total / (double) Math.max(1, (long) width * height * lines);
 
-		final float[] phaseMap = output;
-		output = new float[width * height];
+		return output;
+	}
 
-		// get row length
-		for (int t = 0; t < height; t++) {
-			int curWidth = width;
-			for (int x = 0; x < width; x++) {
-				if (pixels[x + t * width] < 2) {
-					curWidth = x;
-					break;
-				}
+	/**
+	 * Given the running minimum of the row lengths, returns the number of
+	 * leading timepoints whose rows reach column x.
+	 */
+	private static int columnLength(final int[] minRowLength, final int x) {
+		// minRowLength is non-increasing
+		int low = 0, high = minRowLength.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (minRowLength[middle] > x) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
 			}
-			rowLength[t] = curWidth;
 		}
+		return low;
+	}
 
-		// compute the spatial phase profile as a function of time
+	/**
+	 * Computes the spatial phase profile as a function of time, relative to the
+	 * phase at the subtraction point.
+	 */
+	private Object phaseProfileMap(final Object phaseMap, final int[] rowLength, final int width, final int height) {
+		final Object output = QuantizedPhase.createPixels(width * height, phaseMap instanceof short[]);
 		for (int t = 0; t < height; t++) {
+			final float reference = QuantizedPhase.get(phaseMap, (int)subtractionPoint + t * width);
 			for (int x = 0; x < rowLength[t]; x++) {
-				float phaseOffset = ( phaseMap[x + t * width] - phaseMap[(int)subtractionPoint + t * width] + (float)(Math.PI) ) % (float)(2.*Math.PI);
+				float phaseOffset = ( QuantizedPhase.get(phaseMap, x + t * width) - reference + (float)(Math.PI) ) % (float)(2.*Math.PI);
 				if (phaseOffset < 0) {
 					phaseOffset += (float)(2.*Math.PI);
 				}
-				output[x + t * width] = phaseOffset - (float)(Math.PI);
-			}
-			for (int x = rowLength[t] + 1; x < width; x++) {
-				output[x + t * width] = 0;
+				QuantizedPhase.set(output, x + t * width, phaseOffset - (float)(Math.PI));
 			}
 		}
 
 		return output;
 	}
 
-	private float[] getProfile(final float[] pixels, final int offset, final int length) {
+	private float[] getProfile(final Object pixels, final int offset, final int length) {
 		final float[] profile = new float[length];
 		for (int i = 0; i < length; i++) {
-			profile[i] = pixels[offset + i];
+			profile[i] = QuantizedPhase.get(pixels, offset + i);
 			if (i > 0) {
 				float diff = (profile[i] - profile[i - 1]) / (float) Math.PI;
 				if (Math.abs(diff) >= 0.5)
@@ -268,10 +308,16 @@ public class Phase_Map implements PlugInFilter {
 		return profile;
 	}
 
-	private float[] getProfileAtTimepoint(final int t, final float[] map, final int width, final int height) {
+	/**
+	 * Returns the unwrapped phase profile of a timepoint.
+	 *
+	 * @param rowLength the valid length per timepoint if the kymograph's row
+	 *          lengths are known, or null to consider the full width
+	 */
+	private float[] getProfileAtTimepoint(final int t, final Object map, final int width, final int[] rowLength) {
 		final int offset = t * width;
-		int length = width;
-		while (length > 0 && map[offset + length - 1] == 0)
+		int length = rowLength != null ? rowLength[t] : width;
+		while (length > 0 && !QuantizedPhase.isSet(map, offset + length - 1))
 			length--;
 		return getProfile(map, offset, length);
 	}
@@ -306,8 +352,8 @@ public class Phase_Map implements PlugInFilter {
 		return result;
 	}
 
-	private ImagePlus getProfileStack(final String title, final float[] map,
-			final int width, final int height, final float pixelSpacing, final String pixelSpacingUnit,
+	private ImagePlus getProfileStack(final String title, final Object map,
+			final int width, final int height, final int[] rowLength, final float pixelSpacing, final String pixelSpacingUnit,
 			final boolean anchorToZero, boolean cutTails) {
 		ImageStack stack = null;
 		final float[][] profiles = new float[height][];
@@ -315,7 +361,7 @@ public class Phase_Map implements PlugInFilter {
 		minT = Float.MAX_VALUE;
 		maxX = maxT = -Float.MAX_VALUE;
 		for (int t = 0; t < height; t++) {
-			profiles[t] = getProfileAtTimepoint(t, map, width, height);
+			profiles[t] = getProfileAtTimepoint(t, map, width, rowLength);
 			if (maxX < profiles[t].length) {
 				maxX = profiles[t].length;
 			}
@@ -387,10 +433,10 @@ public class Phase_Map implements PlugInFilter {
 	 */
 	private final static int WAVE_COUNT_CUT_OFF = 2;
 
-	private float[] getWaveCounts(final float[] map, final int width, final int height) {
+	private float[] getWaveCounts(final Object map, final int width, final int height, final int[] rowLength) {
 		final float[] waveCounts = new float[height];
 		for (int t = 0; t < height; t++) {
-			final float[] profile = getProfileAtTimepoint(t, map, width, height);
+			final float[] profile = getProfileAtTimepoint(t, map, width, rowLength);
 			if (profile.length <= WAVE_COUNT_CUT_OFF) continue;
 			Arrays.sort(profile);
 			waveCounts[t] = (float) ((profile[profile.length - WAVE_COUNT_CUT_OFF]
@@ -399,6 +445,48 @@ public class Phase_Map implements PlugInFilter {
 		return waveCounts;
 	}
 
+	private void showWaveTracks(final ImagePlus phaseMapImage, final Object map, final int width, final int height,
+			final float frameInterval, final String frameIntervalUnit) {
+		final WaveDetector detector = new WaveDetector();
+		detector.setMaximalDisplacement(maximalWaveDisplacement);
+		final float[][] slips = detector.detect(map, width, height);
+		final List<WaveDetector.Track> tracks = detector.link(slips);
+
+		final float[] counts = new float[height];
+		for (int t = 0; t < height; t++) {
+			counts[t] = slips[t].length;
+		}
+		new Plot("Wave boundaries of " + imp.getTitle(),
+				"time" + ("".equals(frameIntervalUnit) ? "" : (" (" + frameIntervalUnit + ")")),
+				"wave boundary count", range(0, height, frameInterval), counts).show();
+
+		final ResultsTable table = new ResultsTable();
+		final Overlay overlay = new Overlay();
+		for (int i = 0; i < tracks.size(); i++) {
+			final WaveDetector.Track track = tracks.get(i);
+			final float[] x = new float[track.getLength()];
+			final float[] y = new float[track.getLength()];
+			for (int j = 0; j < x.length; j++) {
+				x[j] = track.getPosition(j);
+				y[j] = track.getStart() + j;
+				table.incrementCounter();
+				table.addValue("track", i + 1);
+				table.addValue("t", y[j]);
+				table.addValue("x", x[j]);
+			}
+			if (x.length > 1) {
+				// pixel centers
+				for (int j = 0; j < x.length; j++) {
+					x[j] += 0.5f;
+					y[j] += 0.5f;
+				}
+				overlay.add(new PolygonRoi(x, y, x.length, Roi.POLYLINE));
+			}
+		}
+		phaseMapImage.setOverlay(overlay);
+		table.show("Wave tracks of " + imp.getTitle());
+	}
+
 	@Override
 	public int setup(final String arg, final ImagePlus imp) {
 		this.imp = imp;
@@ -408,9 +496,11 @@ public class Phase_Map implements PlugInFilter {
 	@Override
 	public void run(final ImageProcessor ip) {
 		final GenericDialog gd = new GenericDialog("Phase Map");
+		gd.addNumericField("Lines_per_timepoint (kymographs using the full line width)", linesPerTimepoint, 0);
 		gd.addNumericField("Octave_number", octaveNumber, 0);
 		gd.addNumericField("Voices_per_octave", voicesPerOctave, 0);
 		gd.addNumericField("Gauss_sigma_(x-axis)", gaussSigma, 2);
+		gd.addCheckbox("Recursive_Gauss i.e. faster for large sigmas, approximate", recursiveGauss);
 		gd.addNumericField("x0", x0, 0);
 		gd.addNumericField("x1", x1, 0);
 		gd.addNumericField("sigma0", sigma0, 0);
@@ -421,13 +511,18 @@ public class Phase_Map implements PlugInFilter {
 		gd.addCheckbox("Cut_tails_from_profile_stack i.e. skip spurious signal at tail", cutTailsFromProfileStack);
 		gd.addCheckbox("Show_phase_profile_map", showPhaseProfileMap);
 		gd.addNumericField("Subtraction_point", subtractionPoint, 0);
+		gd.addCheckbox("Detect_waves i.e. track phase slips", detectWaves);
+		gd.addNumericField("Maximal_wave_displacement (pixels per timepoint)", maximalWaveDisplacement, 0);
+		gd.addCheckbox("Quantize_phase i.e. store as 16-bit (resolution ~1e-4 rad)", quantizePhase);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return;
 
+		linesPerTimepoint = Math.max(1, (int)gd.getNextNumber());
 		octaveNumber = gd.getNextNumber();
 		voicesPerOctave = gd.getNextNumber();
 		gaussSigma = gd.getNextNumber();
+		recursiveGauss = gd.getNextBoolean();
 		x0 = gd.getNextNumber();
 		x1 = gd.getNextNumber();
 		sigma0 = gd.getNextNumber();
@@ -438,8 +533,16 @@ public class Phase_Map implements PlugInFilter {
 		cutTailsFromProfileStack = gd.getNextBoolean();
 		showPhaseProfileMap = gd.getNextBoolean();
 		subtractionPoint = gd.getNextNumber();
+		detectWaves = gd.getNextBoolean();
+		maximalWaveDisplacement = gd.getNextNumber();
+		quantizePhase = gd.getNextBoolean();
+
+		if (ip.getHeight() % linesPerTimepoint != 0) {
+			IJ.error("The kymograph height is not a multiple of " + linesPerTimepoint + " lines");
+			return;
+		}
 
-		final int width = ip.getWidth(), height = ip.getHeight();
+		final int width = ip.getWidth(), height = ip.getHeight() / linesPerTimepoint;
 		final Calibration calibration = imp.getCalibration();
 		final float pixelSpacing = calibration == null || calibration.pixelWidth == 0 ?
 				1 : (float) calibration.pixelWidth;
@@ -450,34 +553,53 @@ public class Phase_Map implements PlugInFilter {
 		final String frameIntervalUnit = calibration == null || "".equals(calibration.getTimeUnit()) ?
 				"" : calibration.getTimeUnit();
 
-		float[] phaseMapPixels = phaseMap(ip, false);
-		final FloatProcessor resultPhaseMap = new FloatProcessor(width, height, phaseMapPixels);
-		resultPhaseMap.setMinAndMax(-Math.PI, Math.PI);
-		resultPhaseMap.setLut(createLUT());
-		final ImageProcessor phaseMap = resultPhaseMap;
-
-		new ImagePlus("Phase Map of " + imp.getTitle(), phaseMap).show();
+		final int[] rowLength = new int[height];
+		final float[] dispersion = linesPerTimepoint > 1 ? new float[width * height] : null;
+		final int[] kymographRowLengths = Kymograph.getRowLengths(imp);
+		final Object phaseMapPixels = phaseMap(ip, linesPerTimepoint, kymographRowLengths,
+				rowLength, dispersion, quantizePhase);
+		// without known row lengths, rowLength[] ends at the first dark pixel of each row,
+		// but the phase map goes on past it: the profiles then extend to the last phase set
+		final int[] profileLength = kymographRowLengths != null ? rowLength : null;
+		IJ.showStatus(String.format("Phase map: processed %.1f%% of the kymograph", 100 * processedFraction));
+		final ImageProcessor phaseMap = QuantizedPhase.createProcessor(width, height, phaseMapPixels);
+		phaseMap.setLut(createLUT());
+
+		final ImagePlus phaseMapImage = new ImagePlus("Phase Map of " + imp.getTitle(), phaseMap);
+		QuantizedPhase.calibrate(phaseMapImage);
+		phaseMapImage.setProperty("Processed fraction", processedFraction);
+		phaseMapImage.show();
+
+		if (dispersion != null) {
+			final FloatProcessor dispersionMap = new FloatProcessor(width, height, dispersion);
+			dispersionMap.setMinAndMax(0, 1);
+			new ImagePlus("Phase Dispersion of " + imp.getTitle(), dispersionMap).show();
+		}
 
 		if (plotWaveCounts) {
-			final float[] counts = getWaveCounts(phaseMapPixels, width, height);
+			final float[] counts = getWaveCounts(phaseMapPixels, width, height, profileLength);
 			final float[] x = range(0, counts.length, frameInterval);
 			new Plot("Wave counts of " + imp.getTitle(),
 					"time" + ("".equals(frameIntervalUnit) ? "" : (" (" + frameIntervalUnit + ")")),
 					"wave count", x, counts).show();
 		}
 
+		if (detectWaves)
+			showWaveTracks(phaseMapImage, phaseMapPixels, width, height, frameInterval, frameIntervalUnit);
+
 		if (showProfileStack)
 			getProfileStack("Profile Stack  of " + imp.getTitle(),
-					phaseMapPixels, width, height, pixelSpacing, pixelSpacingUnit,
+					phaseMapPixels, width, height, profileLength, pixelSpacing, pixelSpacingUnit,
 					anchorProfileStack, cutTailsFromProfileStack).show();
 
 		if (showPhaseProfileMap) {
-			final FloatProcessor resultPhaseProfileMap = new FloatProcessor(width, height, phaseMap(ip, true));
-			resultPhaseProfileMap.setMinAndMax(-Math.PI, Math.PI);
-			resultPhaseProfileMap.setLut(createLUT());
-			final ImageProcessor phaseProfileMap = resultPhaseProfileMap;
+			final ImageProcessor phaseProfileMap = QuantizedPhase.createProcessor(width, height,
+					phaseProfileMap(phaseMapPixels, rowLength, width, height));
+			phaseProfileMap.setLut(createLUT());
 
-			new ImagePlus("Phase Profile Map of " + imp.getTitle(), phaseProfileMap).show();
+			final ImagePlus phaseProfileMapImage = new ImagePlus("Phase Profile Map of " + imp.getTitle(), phaseProfileMap);
+			QuantizedPhase.calibrate(phaseProfileMapImage);
+			phaseProfileMapImage.show();
 		}
 
 	}
@@ -1,12 +1,8 @@
 package sc.fiji.timelapse;
 
-import ij.ImagePlus;
-
 import ij.gui.Plot;
 import ij.gui.PolygonRoi;
 
-import ij.plugin.Straightener;
-
 import ij.process.ImageProcessor;
 
 public class PlotUtils {
@@ -109,44 +105,36 @@ public class PlotUtils {
 		return result;
 	}
 
+	/**
+	 * Computes the real parts of the discrete Fourier transform of a series.
+	 * <p>
+	 * The series is transformed at its own length (arbitrary lengths are
+	 * handled exactly by {@link FFT}), so that its spectrum is not smeared by
+	 * padding. As the series is real, only the half spectrum is computed; the
+	 * real parts of the other half mirror it (X<sub>n-k</sub> =
+	 * X<sub>k</sub>*).
+	 * </p>
+	 *
+	 * @param series the values
+	 * @return the real parts of the spectrum, one per value
+	 */
 	public static double[] fft(double[] series) {
-		int fftSize = 1;
-		while (fftSize < series.length)
-			fftSize *= 2;
-		double[][] fftData = new double[fftSize][2];
-		double average = 0;
-		for (int i = 0; i < series.length; i++) {
-			fftData[i][0] = series[i];
-			average += series[i];
+		final int n = series.length;
+		if (n == 0)
+			return new double[0];
+		double[] fftData = new double[n + 2];
+		System.arraycopy(series, 0, fftData, 0, n);
+		FFT.realTransform(fftData, 0, n);
+		double[] result = new double[n];
+		for (int k = 0; 2 * k <= n; k++) {
+			result[k] = fftData[2 * k];
+			if (k > 0)
+				result[n - k] = fftData[2 * k];
 		}
-		average /= series.length;
-		for (int i = series.length; i < fftSize; i++)
-			fftData[i][0] = average;
-		double[][] transformed = new FFT().fft(fftData);
-		double[] result = new double[transformed.length];
-		for (int i = 0; i < result.length; i++)
-			result[i] = transformed[i][0];
 		return result;
 	}
 
-	protected static float[] getProfile(ImageProcessor ip, PolygonRoi roi, boolean fitSpline, int lineWidth) {
-		if (fitSpline && !roi.isSplineFit()) {
-			roi = (PolygonRoi)roi.clone();
-			roi.fitSpline();
-		}
-		ImagePlus dummy = new ImagePlus("dummy", ip);
-		dummy.setRoi(roi);
-		Straightener straightener = new Straightener();
-		ip = straightener.straightenLine(dummy, lineWidth);
-		int w = ip.getWidth();
-		float[] result = new float[w];
-		// need to average explicitely
-		for (int j = 0; j < w; j++) {
-			float value = ip.getf(j, 0);
-			for (int k = 1; k < lineWidth; k++)
-				value += ip.getf(j, k);
-			result[j] = value / lineWidth;
-		}
-		return result;
+	protected static float[] getProfile(ImageProcessor ip, PolygonRoi roi, int lineWidth) {
+		return SamplingPlan.get(roi).getProfile(ip, lineWidth);
 	}
 }
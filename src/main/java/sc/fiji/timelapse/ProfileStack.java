@@ -11,10 +11,9 @@ import ij.gui.PolygonRoi;
 
 import ij.measure.Calibration;
 
+import ij.process.FloatPolygon;
 import ij.process.ImageProcessor;
 
-import java.awt.Rectangle;
-
 public class ProfileStack extends ImagePlus {
 	protected ImagePlus image;
 
@@ -39,7 +38,7 @@ public class ProfileStack extends ImagePlus {
 
 		for (int slice = 1; slice <= profiles.length; slice++)
 			if (rois[slice - 1] != null) {
-				profiles[slice - 1] = PlotUtils.getProfile(stack.getProcessor(slice), rois[slice - 1], true, Line.getWidth());
+				profiles[slice - 1] = PlotUtils.getProfile(stack.getProcessor(slice), rois[slice - 1], Line.getWidth());
 				if (xMax < profiles[slice - 1].length)
 					xMax = profiles[slice - 1].length;
 				for (float value : profiles[slice - 1]) {
@@ -122,15 +121,13 @@ public class ProfileStack extends ImagePlus {
 			return;
 		}
 		image.setRoi(roi);
-		roi = (PolygonRoi)roi.clone();
-		roi.fitSplineForStraightening();
-		if (distance >= roi.getNCoordinates()) {
+		FloatPolygon centreLine = SamplingPlan.get(roi).getCentreLine();
+		if (distance >= centreLine.npoints) {
 			unmark();
 			return;
 		}
-		Rectangle bounds = roi.getBounds();
-		int x = roi.getXCoordinates()[distance] + bounds.x;
-		int y = roi.getYCoordinates()[distance] + bounds.y;
+		int x = (int)centreLine.xpoints[distance];
+		int y = (int)centreLine.ypoints[distance];
 		Overlay overlay = new Overlay(new OvalRoi(x - 10, y - 10, 21, 21));
 		image.setOverlay(overlay);
 	}
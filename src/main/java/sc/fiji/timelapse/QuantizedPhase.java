@@ -0,0 +1,103 @@
+package sc.fiji.timelapse;
+
+import ij.ImagePlus;
+
+import ij.measure.Calibration;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Stores phase values in [-π, π] as unsigned 16-bit integers.
+ * <p>
+ * The codes 1 to 65534 cover the full circle in steps of
+ * {@link #RESOLUTION} (2π / 65534, i.e. about 9.6e-5 radians); the phase
+ * represented by a code is the center of its step, so no code maps to a phase
+ * of exactly 0. The code 0 is reserved for "no data", just like exact zeros in
+ * float phase maps mark the zero-padding of the kymograph.
+ * </p>
+ * <p>
+ * Phase maps are passed around as their pixel arrays; the methods of this
+ * class accept either a <code>float[]</code> or a <code>short[]</code> array,
+ * so that consumers can work on quantized maps directly.
+ * </p>
+ */
+public class QuantizedPhase {
+	public final static int MIN_CODE = 1, MAX_CODE = 65534;
+	public final static double RESOLUTION = 2 * Math.PI / (MAX_CODE - MIN_CODE + 1);
+
+	private final static double CENTER = (MIN_CODE + MAX_CODE) / 2.0;
+
+	public static short encode(final float phase) {
+		if (phase == 0)
+			return 0;
+		long code = Math.round(phase / RESOLUTION + CENTER);
+		if (code < MIN_CODE)
+			code = MIN_CODE;
+		else if (code > MAX_CODE)
+			code = MAX_CODE;
+		return (short)code;
+	}
+
+	public static float decode(final short code) {
+		final int value = code & 0xffff;
+		if (value == 0)
+			return 0;
+		return (float)((value - CENTER) * RESOLUTION);
+	}
+
+	public static float get(final Object pixels, final int index) {
+		if (pixels instanceof short[])
+			return decode(((short[])pixels)[index]);
+		return ((float[])pixels)[index];
+	}
+
+	public static void set(final Object pixels, final int index, final float phase) {
+		if (pixels instanceof short[])
+			((short[])pixels)[index] = encode(phase);
+		else
+			((float[])pixels)[index] = phase;
+	}
+
+	/**
+	 * Tests whether a phase map pixel holds data (as opposed to padding).
+	 */
+	public static boolean isSet(final Object pixels, final int index) {
+		if (pixels instanceof short[])
+			return ((short[])pixels)[index] != 0;
+		return ((float[])pixels)[index] != 0;
+	}
+
+	public static Object createPixels(final int size, final boolean quantized) {
+		return quantized ? new short[size] : new float[size];
+	}
+
+	/**
+	 * Wraps a phase map into a processor whose display range maps [-π, π] onto
+	 * the full LUT, regardless of the storage type.
+	 */
+	public static ImageProcessor createProcessor(final int width, final int height, final Object pixels) {
+		if (pixels instanceof short[]) {
+			final ShortProcessor result = new ShortProcessor(width, height, (short[])pixels, null);
+			result.setMinAndMax(MIN_CODE, MAX_CODE);
+			return result;
+		}
+		final FloatProcessor result = new FloatProcessor(width, height, (float[])pixels);
+		result.setMinAndMax(-Math.PI, Math.PI);
+		return result;
+	}
+
+	/**
+	 * Makes ImageJ report the phase (in radians) of a quantized phase map.
+	 */
+	public static void calibrate(final ImagePlus image) {
+		if (image.getBitDepth() != 16)
+			return;
+		Calibration calibration = image.getCalibration();
+		if (calibration == null)
+			image.setCalibration((calibration = new Calibration()));
+		calibration.setFunction(Calibration.STRAIGHT_LINE,
+				new double[] { -CENTER * RESOLUTION, RESOLUTION }, "radians");
+	}
+}
@@ -0,0 +1,289 @@
+package sc.fiji.timelapse;
+
+import ij.gui.PolygonRoi;
+
+import ij.process.FloatPolygon;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The sampling geometry of a straightened LOI.
+ * <p>
+ * ImageJ's {@link ij.plugin.Straightener} fits a spline with points one pixel
+ * apart to the LOI, and samples the image along the normal at every point of
+ * the spline. Fitting the spline is by far the most expensive part, and it
+ * only depends on the vertices of the LOI; a plan therefore holds the points
+ * of the spline (the centre line) and the normals, and is cached by the
+ * vertices. Straightening another slice or channel with the same LOI, or the
+ * same LOI with another line width, then boils down to the bilinear
+ * interpolation of the samples.
+ * </p>
+ * <p>
+ * Rather than storing the interpolation indices and weights of every sample,
+ * the plan stores the start and the step of every normal: the sample
+ * positions are regenerated with the very same arithmetic as the
+ * Straightener's, which costs no more than loading them, yields identical
+ * values and keeps the plans of thousands of slices small enough to cache.
+ * </p>
+ * <p>
+ * The LOI itself is left alone (the Straightener fits the spline in place).
+ * </p>
+ */
+public class SamplingPlan {
+	/** the maximal number of centre line points of all cached plans */
+	private final static int MAX_CACHED_POINTS = 1 << 20;
+
+	private final static Map<Key, SamplingPlan> cache = new LinkedHashMap<Key, SamplingPlan>(16, 0.75f, true);
+	private static int cachedPoints;
+
+	private final FloatPolygon centreLine;
+	/** the centre line, and the unit normal (rotated by 90 degrees) */
+	private final double[] x, y, normalX, normalY;
+
+	/**
+	 * Obtains the plan of an LOI, from the cache if its vertices have not
+	 * changed.
+	 *
+	 * @param roi the LOI (a segmented or freehand line)
+	 * @return the plan
+	 */
+	public static SamplingPlan get(final PolygonRoi roi) {
+		final Key key = getKey(roi);
+		synchronized (cache) {
+			final SamplingPlan plan = cache.get(key);
+			if (plan != null)
+				return plan;
+		}
+		// fit the spline outside the lock, so that the plans of different LOIs are made concurrently
+		final SamplingPlan plan = new SamplingPlan(roi);
+		synchronized (cache) {
+			if (cache.put(key, plan) == null)
+				cachedPoints += plan.getLength();
+			for (Iterator<SamplingPlan> iter = cache.values().iterator(); cachedPoints > MAX_CACHED_POINTS && iter.hasNext(); ) {
+				final SamplingPlan eldest = iter.next();
+				if (eldest == plan)
+					break;
+				cachedPoints -= eldest.getLength();
+				iter.remove();
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Captures the geometry an LOI's plan depends on; LOIs with equal keys
+	 * share their plan.
+	 *
+	 * @param roi the LOI
+	 * @return the key
+	 */
+	protected static Key getKey(final PolygonRoi roi) {
+		return new Key(roi.getType(), roi.getNonSplineFloatPolygon());
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+			cachedPoints = 0;
+		}
+	}
+
+	protected SamplingPlan(final PolygonRoi roi) {
+		final PolygonRoi fitted = (PolygonRoi)roi.clone();
+		// whether the LOI is fitted already changes the spline's point count
+		fitted.removeSplineFit();
+		fitted.fitSplineForStraightening();
+		final FloatPolygon p = fitted.getFloatPolygon();
+		final int n = fitted.getNCoordinates() < 2 ? 0 : p.npoints;
+		centreLine = new FloatPolygon(Arrays.copyOf(p.xpoints, n), Arrays.copyOf(p.ypoints, n), n);
+		x = new double[n];
+		y = new double[n];
+		normalX = new double[n];
+		normalY = new double[n];
+		if (n == 0)
+			return;
+		// the same arithmetic as in Straightener.straightenLine()
+		double x1, y1;
+		double x2 = p.xpoints[0] - (p.xpoints[1] - p.xpoints[0]);
+		double y2 = p.ypoints[0] - (p.ypoints[1] - p.ypoints[0]);
+		for (int i = 0; i < n; i++) {
+			x1 = x2;
+			y1 = y2;
+			x2 = p.xpoints[i];
+			y2 = p.ypoints[i];
+			double dx = x2 - x1;
+			double dy = y1 - y2;
+			double length = (float)Math.sqrt(dx * dx + dy * dy);
+			dx /= length;
+			dy /= length;
+			x[i] = x2;
+			y[i] = y2;
+			normalX[i] = dy;
+			normalY[i] = dx;
+		}
+	}
+
+	/**
+	 * @return the number of points of the centre line, i.e. the width of the
+	 *         straightened image
+	 */
+	public int getLength() {
+		return x.length;
+	}
+
+	/**
+	 * @return the points of the spline along which the LOI is straightened,
+	 *         one per column of the straightened image
+	 */
+	public FloatPolygon getCentreLine() {
+		return centreLine;
+	}
+
+	/**
+	 * Straightens an image along the LOI.
+	 *
+	 * @param ip the image
+	 * @param lineWidth the line width, i.e. the height of the result
+	 * @return the straightened image, or null if the LOI is too short
+	 */
+	public FloatProcessor straighten(final ImageProcessor ip, final int lineWidth) {
+		if (getLength() == 0)
+			return null;
+		final float[] pixels = new float[getLength() * lineWidth];
+		straighten(ip, lineWidth, pixels, 0, getLength());
+		return new FloatProcessor(getLength(), lineWidth, pixels, null);
+	}
+
+	/**
+	 * Straightens an image along the LOI into a buffer.
+	 *
+	 * @param ip the image
+	 * @param lineWidth the line width
+	 * @param output the buffer receiving the <code>lineWidth</code> rows
+	 * @param offset the index of the first pixel of the first row
+	 * @param stride the distance between two rows
+	 */
+	public void straighten(final ImageProcessor ip, final int lineWidth, final float[] output, final int offset, final int stride) {
+		final Sampler sampler = new Sampler(ip);
+		for (int i = 0; i < getLength(); i++) {
+			if (lineWidth == 1) {
+				output[offset + i] = (float)sampler.get(x[i], y[i]);
+				continue;
+			}
+			final double dy = normalX[i], dx = normalY[i];
+			double x = this.x[i] - dy * lineWidth / 2.0;
+			double y = this.y[i] - dx * lineWidth / 2.0;
+			for (int j = 0; j < lineWidth; j++) {
+				output[offset + j * stride + i] = (float)sampler.get(x, y);
+				x += dy;
+				y += dx;
+			}
+		}
+	}
+
+	/**
+	 * Computes the profile along the LOI, averaged over the line width.
+	 *
+	 * @param ip the image
+	 * @param lineWidth the line width
+	 * @return the profile
+	 */
+	public float[] getProfile(final ImageProcessor ip, final int lineWidth) {
+		final int w = getLength();
+		final float[] pixels = new float[w * lineWidth];
+		straighten(ip, lineWidth, pixels, 0, w);
+		final float[] result = new float[w];
+		// need to average explicitely
+		for (int j = 0; j < w; j++) {
+			float value = pixels[j];
+			for (int k = 1; k < lineWidth; k++)
+				value += pixels[k * w + j];
+			result[j] = value / lineWidth;
+		}
+		return result;
+	}
+
+	/**
+	 * Interpolates 8-bit, 16-bit and 32-bit images bilinearly, the same way
+	 * as {@link ImageProcessor#getInterpolatedValue(double, double)}, but
+	 * without the per-pixel method calls. Near the border (and for other
+	 * types), the ImageProcessor's own method is called.
+	 */
+	protected static class Sampler {
+		private final ImageProcessor ip;
+		private final int width, height;
+		private final Object pixels;
+		private final float[] cTable;
+
+		public Sampler(final ImageProcessor ip) {
+			this.ip = ip;
+			width = ip.getWidth();
+			height = ip.getHeight();
+			final Object pixels = ip.getPixels();
+			this.pixels = pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[] ? pixels : null;
+			cTable = ip.getCalibrationTable();
+		}
+
+		public double get(final double x, final double y) {
+			if (pixels == null || x < 0.0 || y < 0.0 || x >= width - 1.0 || y >= height - 1.0)
+				return ip.getInterpolatedValue(x, y);
+			final int xbase = (int)x;
+			final int ybase = (int)y;
+			final double xFraction = x - xbase;
+			final double yFraction = y - ybase;
+			final int index = ybase * width + xbase;
+			final double lowerLeft = getValue(index);
+			final double lowerRight = getValue(index + 1);
+			final double upperRight = getValue(index + width + 1);
+			final double upperLeft = getValue(index + width);
+			final double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+			final double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+			return lowerAverage + yFraction * (upperAverage - lowerAverage);
+		}
+
+		private float getValue(final int index) {
+			if (pixels instanceof float[])
+				return ((float[])pixels)[index];
+			if (pixels instanceof byte[]) {
+				final int value = ((byte[])pixels)[index] & 0xff;
+				return cTable == null ? value : cTable[value];
+			}
+			final int value = ((short[])pixels)[index] & 0xffff;
+			return cTable == null ? value : cTable[value];
+		}
+	}
+
+	/**
+	 * The type and the vertices of an LOI.
+	 */
+	protected static class Key {
+		private final int type;
+		private final float[] x, y;
+		private final int hashCode;
+
+		public Key(final int type, final FloatPolygon polygon) {
+			this.type = type;
+			x = Arrays.copyOf(polygon.xpoints, polygon.npoints);
+			y = Arrays.copyOf(polygon.ypoints, polygon.npoints);
+			hashCode = 31 * (31 * type + Arrays.hashCode(x)) + Arrays.hashCode(y);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+			if (!(other instanceof Key))
+				return false;
+			final Key key = (Key)other;
+			return type == key.type && Arrays.equals(x, key.x) && Arrays.equals(y, key.y);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package sc.fiji.timelapse;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A virtual stack of the slices of an image straightened along their LOIs.
+ * <p>
+ * A slice is only straightened when it is shown, using the LOI that the ROI
+ * array holds at that moment; the most recently used slices are kept, so
+ * that browsing back and forth does not straighten them again. Slices whose
+ * LOI has moved since they were straightened (as told by the LOI's
+ * vertices) are straightened anew.
+ * </p>
+ * <p>
+ * The width of the stack is that of the longest straightened LOI at the time
+ * the stack is created (only the {@link SamplingPlan}s are needed for that,
+ * not the straightened pixels, but the plans of all slices are made, so the
+ * stack is best created off the event dispatch thread); shorter slices are padded with zeros, and
+ * LOIs that grow later are cropped.
+ * </p>
+ * <p>
+ * To hold all slices in memory instead, use {@link #toImageStack()}.
+ * </p>
+ */
+public class StraightenedStack extends VirtualStack {
+	/** the number of straightened slices to keep */
+	private final static int CACHE_SIZE = 32;
+
+	protected final ImageStack source;
+	protected final Roi[] rois;
+	protected final int lineWidth;
+	private final Map<Integer, CachedSlice> cache = new LinkedHashMap<Integer, CachedSlice>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Integer, CachedSlice> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Creates a straightened stack.
+	 *
+	 * @param image the image whose slices are straightened
+	 * @param rois the LOI per slice (or null where there is none); the array
+	 *          is not copied, so that changes to the LOIs are picked up
+	 * @param lineWidth the line width, i.e. the height of the stack
+	 */
+	public StraightenedStack(final ImagePlus image, final Roi[] rois, final int lineWidth) {
+		super(getWidth(rois), lineWidth, null, null);
+		source = image.getStack();
+		this.rois = rois;
+		this.lineWidth = lineWidth;
+	}
+
+	/**
+	 * Determines the length of the longest straightened LOI, making the
+	 * sampling plans of all slices concurrently.
+	 */
+	protected static int getWidth(final Roi[] rois) {
+		final int[] lengths = new int[rois.length];
+		Parallel.forEach(0, rois.length, new Parallel.Body() {
+			@Override
+			public void run(final int i) {
+				if (rois[i] instanceof PolygonRoi)
+					lengths[i] = SamplingPlan.get((PolygonRoi)rois[i]).getLength();
+			}
+		});
+		int width = 1;
+		for (int length : lengths)
+			width = Math.max(width, length);
+		return width;
+	}
+
+	@Override
+	public ImageProcessor getProcessor(final int n) {
+		final PolygonRoi roi = rois[n - 1] instanceof PolygonRoi ? (PolygonRoi)rois[n - 1] : null;
+		final SamplingPlan.Key key = roi == null ? null : SamplingPlan.getKey(roi);
+		synchronized (cache) {
+			final CachedSlice cached = cache.get(n);
+			if (cached != null && (key == null ? cached.key == null : key.equals(cached.key)))
+				return cached.ip.duplicate();
+		}
+		final FloatProcessor ip = new FloatProcessor(getWidth(), getHeight());
+		straighten(n, roi == null ? null : SamplingPlan.get(roi), (float[])ip.getPixels());
+		synchronized (cache) {
+			cache.put(n, new CachedSlice(key, ip));
+		}
+		return ip.duplicate();
+	}
+
+	/**
+	 * Straightens a slice into zero-padded pixels of the stack's size.
+	 */
+	protected void straighten(final int n, final SamplingPlan plan, final float[] pixels) {
+		if (plan == null || plan.getLength() == 0)
+			return;
+		if (plan.getLength() <= getWidth())
+			plan.straighten(Kymograph.getProcessor(source, n), lineWidth, pixels, 0, getWidth());
+		else {
+			// the LOI grew since the stack was created
+			final FloatProcessor straightened = plan.straighten(Kymograph.getProcessor(source, n), lineWidth);
+			for (int y = 0; y < lineWidth; y++)
+				System.arraycopy(straightened.getPixels(), y * plan.getLength(), pixels, y * getWidth(), getWidth());
+		}
+	}
+
+	/**
+	 * Straightens all slices at once, concurrently.
+	 * <p>
+	 * The slices are allocated up front, in their final size, and every
+	 * slice is straightened directly into its (zero-padded) pixels.
+	 * </p>
+	 *
+	 * @return an ordinary stack holding all straightened slices
+	 */
+	public ImageStack toImageStack() {
+		final float[][] slices = new float[getSize()][];
+		Parallel.forEach(0, slices.length, new Parallel.Body() {
+			@Override
+			public void run(final int i) {
+				slices[i] = new float[getWidth() * getHeight()];
+				final SamplingPlan plan = rois[i] instanceof PolygonRoi ? SamplingPlan.get((PolygonRoi)rois[i]) : null;
+				straighten(i + 1, plan, slices[i]);
+			}
+		});
+		final ImageStack result = new ImageStack(getWidth(), getHeight());
+		for (int i = 0; i < slices.length; i++)
+			result.addSlice(getSliceLabel(i + 1), slices[i]);
+		return result;
+	}
+
+	@Override
+	public Object getPixels(final int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	/**
+	 * Ignored: the slices are computed from the original image.
+	 */
+	@Override
+	public void setPixels(final Object pixels, final int n) { }
+
+	@Override
+	public int getSize() {
+		return rois.length;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return 32;
+	}
+
+	@Override
+	public String getSliceLabel(final int n) {
+		return source.getSliceLabel(n);
+	}
+
+	/**
+	 * Ignored: there is a slice per LOI.
+	 */
+	@Override
+	public void deleteSlice(final int n) { }
+
+	/**
+	 * A straightened slice, together with the geometry of the LOI it was
+	 * straightened with (the plan itself may have been evicted from the
+	 * {@link SamplingPlan} cache in the meantime).
+	 */
+	private static class CachedSlice {
+		private final SamplingPlan.Key key;
+		private final FloatProcessor ip;
+
+		public CachedSlice(final SamplingPlan.Key key, final FloatProcessor ip) {
+			this.key = key;
+			this.ip = ip;
+		}
+	}
+}
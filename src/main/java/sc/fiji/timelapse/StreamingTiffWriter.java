@@ -0,0 +1,201 @@
+package sc.fiji.timelapse;
+
+import ij.IJ;
+
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an 8-bit, 16-bit or 32-bit hyperstack to a TIFF file one image at a
+ * time.
+ * <p>
+ * In contrast to ImageJ's own TIFF writer, the images need not be in memory
+ * all at once: the pixel data is appended to the file as soon as an image is
+ * available. The first IFD and the ImageJ description are reserved at the
+ * beginning of the file and filled in when the writer is closed, when the
+ * number of images and the display range are known; the remaining IFDs are
+ * appended after the pixel data.
+ * </p>
+ * <p>
+ * The pixel data is contiguous, so if the file grows beyond the 4GB that
+ * 32-bit TIFF offsets can address, only the first IFD is written. ImageJ then
+ * still opens all images, using the image count from the description (this
+ * is what ImageJ itself does with large stacks).
+ * </p>
+ */
+public class StreamingTiffWriter implements Closeable {
+	private final static int DESCRIPTION_CAPACITY = 256;
+	private final static int HEADER_SIZE = 8;
+	/** only the first IFD has an ImageDescription entry */
+	private final static int FIRST_IFD_SIZE = 2 + 12 * 12 + 4, IFD_SIZE = 2 + 12 * 11 + 4;
+	private final static long MAX_OFFSET = 0xffffffffL;
+
+	private final int width, height, bitDepth, channels, slices;
+	private final long imageSize;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final long dataOffset;
+	private int imageCount;
+	private double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+
+	/**
+	 * Creates (or overwrites) a TIFF file.
+	 *
+	 * @param path the path of the file
+	 * @param width the width of the images
+	 * @param height the height of the images
+	 * @param bitDepth 8, 16 or 32 (for float images)
+	 * @param channels the number of channels of the hyperstack
+	 * @param slices the number of z-slices of the hyperstack; the images must
+	 *          be written ordered by frame, then slice, then channel
+	 */
+	public StreamingTiffWriter(final File path, final int width, final int height, final int bitDepth,
+			final int channels, final int slices) throws IOException {
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		this.channels = channels;
+		this.slices = slices;
+		imageSize = (long)bitDepth / 8 * width * height;
+		if (path.exists() && !path.delete())
+			throw new IOException("Could not overwrite " + path);
+		file = new RandomAccessFile(path, "rw");
+		channel = file.getChannel();
+		buffer = ByteBuffer.allocate(bitDepth / 8 * width);
+		dataOffset = HEADER_SIZE + FIRST_IFD_SIZE + DESCRIPTION_CAPACITY;
+		channel.position(dataOffset);
+	}
+
+	/**
+	 * Appends an image.
+	 */
+	public void write(final ImageProcessor ip) throws IOException {
+		if (ip.getWidth() != width || ip.getHeight() != height)
+			throw new IllegalArgumentException("Image size mismatch: " + ip.getWidth() + "x" + ip.getHeight());
+		final Object pixels = ip.getPixels();
+		if (!(bitDepth == 8 ? pixels instanceof byte[] : bitDepth == 16 ? pixels instanceof short[] : pixels instanceof float[]))
+			throw new IllegalArgumentException("Expected a " + bitDepth + "-bit image");
+		for (int y = 0; y < height; y++) {
+			buffer.clear();
+			final int offset = y * width;
+			if (pixels instanceof byte[]) {
+				final byte[] bytes = (byte[])pixels;
+				buffer.put(bytes, offset, width);
+				for (int i = offset; i < offset + width; i++)
+					updateRange(bytes[i] & 0xff);
+			}
+			else if (pixels instanceof short[]) {
+				final short[] shorts = (short[])pixels;
+				for (int i = offset; i < offset + width; i++) {
+					buffer.putShort(shorts[i]);
+					updateRange(shorts[i] & 0xffff);
+				}
+			}
+			else {
+				final float[] floats = (float[])pixels;
+				for (int i = offset; i < offset + width; i++) {
+					buffer.putFloat(floats[i]);
+					updateRange(floats[i]);
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		imageCount++;
+	}
+
+	private void updateRange(final double value) {
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+	}
+
+	public int getImageCount() {
+		return imageCount;
+	}
+
+	/**
+	 * Writes the IFDs and the description, and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			final long ifdsOffset = dataOffset + imageCount * imageSize;
+			final boolean allIFDs = ifdsOffset + (long)imageCount * IFD_SIZE <= MAX_OFFSET;
+
+			final ByteBuffer header = ByteBuffer.allocate((int)dataOffset);
+			header.put((byte)'M').put((byte)'M').putShort((short)42).putInt(HEADER_SIZE);
+			writeIFD(header, 0, allIFDs && imageCount > 1 ? ifdsOffset : 0);
+			final byte[] description = getDescription().getBytes("US-ASCII");
+			header.put(description, 0, Math.min(description.length, DESCRIPTION_CAPACITY - 1));
+			header.flip();
+			channel.write(header, 0);
+
+			if (allIFDs && imageCount > 1) {
+				final ByteBuffer ifds = ByteBuffer.allocate((imageCount - 1) * IFD_SIZE);
+				for (int i = 1; i < imageCount; i++)
+					writeIFD(ifds, i, i + 1 < imageCount ? ifdsOffset + i * IFD_SIZE : 0);
+				ifds.flip();
+				channel.write(ifds, ifdsOffset);
+			}
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	protected void writeIFD(final ByteBuffer out, final int index, final long nextIFD) {
+		final long stripOffset = dataOffset + index * imageSize;
+		out.putShort((short)(index == 0 ? 12 : 11));
+		writeEntry(out, 254, 4, 1, 0); // NewSubfileType
+		writeEntry(out, 256, 4, 1, width); // ImageWidth
+		writeEntry(out, 257, 4, 1, height); // ImageLength
+		writeEntry(out, 258, 3, 1, bitDepth << 16); // BitsPerSample (short, left-justified)
+		writeEntry(out, 259, 3, 1, 1 << 16); // Compression: none
+		writeEntry(out, 262, 3, 1, 1 << 16); // PhotometricInterpretation: black is zero
+		if (index == 0)
+			writeEntry(out, 270, 2, DESCRIPTION_CAPACITY, HEADER_SIZE + FIRST_IFD_SIZE); // ImageDescription
+		writeEntry(out, 273, 4, 1, stripOffset > MAX_OFFSET ? 0 : stripOffset); // StripOffsets
+		writeEntry(out, 277, 3, 1, 1 << 16); // SamplesPerPixel
+		writeEntry(out, 278, 4, 1, height); // RowsPerStrip
+		writeEntry(out, 279, 4, 1, imageSize); // StripByteCounts
+		writeEntry(out, 339, 3, 1, (bitDepth == 32 ? 3 : 1) << 16); // SampleFormat: float or unsigned
+		out.putInt((int)nextIFD);
+	}
+
+	protected static void writeEntry(final ByteBuffer out, final int tag, final int type, final int count, final long value) {
+		out.putShort((short)tag).putShort((short)type).putInt(count).putInt((int)value);
+	}
+
+	protected String getDescription() {
+		final int frames = imageCount / (channels * slices);
+		final StringBuilder builder = new StringBuilder();
+		builder.append("ImageJ=").append(IJ.getVersion()).append('\n');
+		builder.append("images=").append(imageCount).append('\n');
+		if (channels > 1)
+			builder.append("channels=").append(channels).append('\n');
+		if (slices > 1)
+			builder.append("slices=").append(slices).append('\n');
+		if (frames > 1)
+			builder.append("frames=").append(frames).append('\n');
+		if ((channels > 1 ? 1 : 0) + (slices > 1 ? 1 : 0) + (frames > 1 ? 1 : 0) > 1)
+			builder.append("hyperstack=true\n");
+		if (channels > 1)
+			builder.append("mode=grayscale\n");
+		if (imageCount > 0 && min <= max)
+			builder.append("min=").append(min).append('\n').append("max=").append(max).append('\n');
+		return builder.toString();
+	}
+}
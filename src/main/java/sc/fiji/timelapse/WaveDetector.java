@@ -0,0 +1,213 @@
+package sc.fiji.timelapse;
+
+import fiji.util.FloatArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Detects wave boundaries in a phase map as phase slips.
+ * <p>
+ * Each row of a phase map holds the phase (in [-π, π]) along the LOI at one
+ * timepoint. Wherever the phase wraps around from π to -π (or vice versa)
+ * between two neighbouring pixels, one wave ends and the next begins. Finding
+ * these wrap points is a single linear scan per row; the positions are then
+ * linked across timepoints into wave tracks.
+ * </p>
+ */
+public class WaveDetector {
+	private final static float PI = (float) Math.PI, PI2 = (float) (2 * Math.PI);
+
+	/**
+	 * Opposite slips closer than this (in pixels) are treated as noise around
+	 * the ±π boundary and cancel each other.
+	 */
+	private double minimalSlipDistance = 3;
+
+	/**
+	 * The maximal distance (in pixels) a wave boundary may move from one
+	 * timepoint to the next and still be considered the same wave.
+	 */
+	private double maximalDisplacement = 10;
+
+	public static class Track {
+		private final int start;
+		private final FloatArray positions = new FloatArray();
+
+		private Track(final int start) {
+			this.start = start;
+		}
+
+		/**
+		 * @return the first timepoint (row) of this track
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * @return the number of consecutive timepoints covered by this track
+		 */
+		public int getLength() {
+			return positions.size();
+		}
+
+		/**
+		 * @return the boundary position at the given offset from the start
+		 */
+		public float getPosition(final int offset) {
+			return positions.get(offset);
+		}
+
+		private float last() {
+			return positions.get(positions.size() - 1);
+		}
+	}
+
+	public void setMinimalSlipDistance(final double minimalSlipDistance) {
+		this.minimalSlipDistance = minimalSlipDistance;
+	}
+
+	public void setMaximalDisplacement(final double maximalDisplacement) {
+		this.maximalDisplacement = maximalDisplacement;
+	}
+
+	/**
+	 * Finds the phase slips in every row of a phase map.
+	 * <p>
+	 * Rows are processed concurrently. Trailing zeros (the zero-padding of the
+	 * kymograph) are not part of a row.
+	 * </p>
+	 *
+	 * @param map the phase map pixels, either float or quantized (see
+	 *          {@link QuantizedPhase})
+	 * @param width the width of the phase map
+	 * @param height the number of timepoints
+	 * @return the sub-pixel slip positions for each row
+	 */
+	public float[][] detect(final Object map, final int width, final int height) {
+		final float[][] result = new float[height][];
+		Parallel.forEach(0, height, new Parallel.Body() {
+			@Override
+			public void run(final int t) {
+				final int offset = t * width;
+				int length = width;
+				while (length > 0 && !QuantizedPhase.isSet(map, offset + length - 1))
+					length--;
+				if (map instanceof float[]) {
+					result[t] = detectRow((float[])map, offset, length);
+					return;
+				}
+				final float[] row = new float[length];
+				for (int x = 0; x < length; x++)
+					row[x] = QuantizedPhase.get(map, offset + x);
+				result[t] = detectRow(row, 0, length);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Finds the phase slips in a single phase profile.
+	 *
+	 * @param phases the phase values
+	 * @param offset the index of the first value of the profile
+	 * @param length the number of values in the profile
+	 * @return the sub-pixel slip positions
+	 */
+	public float[] detectRow(final float[] phases, final int offset, final int length) {
+		float[] positions = new float[16];
+		byte[] directions = new byte[16];
+		int count = 0;
+		for (int x = 1; x < length; x++) {
+			final float previous = phases[offset + x - 1], current = phases[offset + x];
+			final float diff = current - previous;
+			final float position;
+			final byte direction;
+			if (diff < -PI) {
+				// phase increases through +π
+				position = x - 1 + (PI - previous) / (diff + PI2);
+				direction = 1;
+			}
+			else if (diff > PI) {
+				// phase decreases through -π
+				position = x - 1 + (previous + PI) / (PI2 - diff);
+				direction = -1;
+			}
+			else
+				continue;
+
+			// jitter around the boundary shows as two opposite slips
+			if (count > 0 && directions[count - 1] != direction &&
+					position - positions[count - 1] < minimalSlipDistance) {
+				count--;
+				continue;
+			}
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, 2 * count);
+				directions = Arrays.copyOf(directions, 2 * count);
+			}
+			positions[count] = position;
+			directions[count] = direction;
+			count++;
+		}
+		return Arrays.copyOf(positions, count);
+	}
+
+	/**
+	 * Links the slip positions of consecutive timepoints into wave tracks.
+	 * <p>
+	 * The closest pairs are linked first; a track ends when no slip in the next
+	 * timepoint lies within the maximal displacement.
+	 * </p>
+	 *
+	 * @param positions the slip positions per timepoint, as returned by
+	 *          {@link #detect(Object, int, int)}
+	 * @return the wave tracks
+	 */
+	public List<Track> link(final float[][] positions) {
+		final List<Track> tracks = new ArrayList<Track>();
+		Track[] active = new Track[0];
+		for (int t = 0; t < positions.length; t++) {
+			final float[] current = positions[t] == null ? new float[0] : positions[t];
+			final Track[] next = new Track[current.length];
+
+			// candidate links, sorted by distance
+			final List<long[]> candidates = new ArrayList<long[]>();
+			for (int i = 0; i < active.length; i++)
+				for (int j = 0; j < current.length; j++) {
+					final float distance = Math.abs(current[j] - active[i].last());
+					if (distance <= maximalDisplacement)
+						candidates.add(new long[] { Float.floatToIntBits(distance), i, j });
+				}
+			// non-negative floats sort like their bit patterns
+			Collections.sort(candidates, new Comparator<long[]>() {
+				@Override
+				public int compare(final long[] a, final long[] b) {
+					return Long.compare(a[0], b[0]);
+				}
+			});
+
+			final boolean[] used = new boolean[active.length];
+			for (final long[] candidate : candidates) {
+				final int i = (int) candidate[1], j = (int) candidate[2];
+				if (used[i] || next[j] != null)
+					continue;
+				used[i] = true;
+				next[j] = active[i];
+				next[j].positions.add(current[j]);
+			}
+			for (int j = 0; j < current.length; j++)
+				if (next[j] == null) {
+					next[j] = new Track(t);
+					next[j].positions.add(current[j]);
+					tracks.add(next[j]);
+				}
+			active = next;
+		}
+		return tracks;
+	}
+}
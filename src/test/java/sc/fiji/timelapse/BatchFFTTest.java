@@ -0,0 +1,89 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the batched transforms with a {@link FFT#transform} per row or
+ * column.
+ */
+public class BatchFFTTest {
+	/** even, odd and power-of-two widths and heights */
+	private final static int[][] SIZES = { { 64, 37 }, { 37, 64 }, { 50, 24 } };
+
+	@Test
+	public void testRowsAndColumns() {
+		for (final int[] size : SIZES) {
+			final FloatProcessor image = random(size[0], size[1]);
+			for (final boolean columns : new boolean[] { false, true }) {
+				final int n = columns ? size[1] : size[0];
+				final int count = columns ? size[0] : size[1];
+				final double[] spectra = columns ? BatchFFT.transformColumns(image, (double[])null) :
+					BatchFFT.transformRows(image, (double[])null);
+				final float[] floatSpectra = columns ? BatchFFT.transformColumns(image, (float[])null) :
+					BatchFFT.transformRows(image, (float[])null);
+				for (int i = 0; i < count; i++) {
+					final double[] expected = transform(image, i, columns);
+					final int offset = i * BatchFFT.getStride(n);
+					for (int k = 0; k < 2 * (n / 2 + 1); k++) {
+						final String message = size[0] + "x" + size[1] + (columns ? " column " : " row ") + i + " [" + k + "]";
+						assertEquals(message, expected[k], spectra[offset + k], 1e-9);
+						assertEquals(message, expected[k], floatSpectra[offset + k], 1e-4);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testInverse() {
+		for (final int[] size : SIZES) {
+			final FloatProcessor image = random(size[0], size[1]);
+			final float[] pixels = (float[])image.getPixels();
+			for (final boolean columns : new boolean[] { false, true }) {
+				final FloatProcessor result = new FloatProcessor(size[0], size[1]);
+				if (columns)
+					BatchFFT.inverseColumns(BatchFFT.transformColumns(image, (double[])null), result);
+				else
+					BatchFFT.inverseRows(BatchFFT.transformRows(image, (double[])null), result);
+				final FloatProcessor floatResult = new FloatProcessor(size[0], size[1]);
+				if (columns)
+					BatchFFT.inverseColumns(BatchFFT.transformColumns(image, (float[])null), floatResult);
+				else
+					BatchFFT.inverseRows(BatchFFT.transformRows(image, (float[])null), floatResult);
+				final float[] actual = (float[])result.getPixels(), floatActual = (float[])floatResult.getPixels();
+				for (int i = 0; i < pixels.length; i++) {
+					assertEquals("round trip [" + i + "]", pixels[i], actual[i], 1e-6);
+					assertEquals("float round trip [" + i + "]", pixels[i], floatActual[i], 1e-5);
+				}
+			}
+		}
+	}
+
+	private static FloatProcessor random(final int width, final int height) {
+		final Random random = new Random(width * height);
+		final float[] pixels = new float[width * height];
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = random.nextFloat();
+		return new FloatProcessor(width, height, pixels);
+	}
+
+	/**
+	 * Transforms one row or column as complex values.
+	 */
+	private static double[] transform(final FloatProcessor image, final int index, final boolean columns) {
+		final float[] pixels = (float[])image.getPixels();
+		final int width = image.getWidth();
+		final int n = columns ? image.getHeight() : width;
+		final double[] data = new double[2 * n];
+		for (int j = 0; j < n; j++)
+			data[2 * j] = columns ? pixels[index + j * width] : pixels[index * width + j];
+		FFT.transform(data, 0, n, false);
+		return data;
+	}
+}
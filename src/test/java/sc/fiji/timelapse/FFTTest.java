@@ -0,0 +1,125 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link FFT} with a naive discrete Fourier transform.
+ */
+public class FFTTest {
+	/** powers of two, primes, other odd and other even lengths */
+	private final static int[] SIZES = {
+		1, 2, 4, 8, 64, 1024,
+		3, 5, 7, 13, 101, 1009,
+		9, 15, 27, 99, 255,
+		6, 12, 100, 300
+	};
+
+	@Test
+	public void testComplex() {
+		for (final int n : SIZES) {
+			final double[] data = random(2 * n, n);
+			final double[] expected = dft(data, n, false);
+			FFT.transform(data, 0, n, false);
+			assertClose("forward " + n, expected, data, 2 * n);
+		}
+	}
+
+	@Test
+	public void testInverse() {
+		for (final int n : SIZES) {
+			final double[] data = random(2 * n, n);
+			final double[] expected = dft(data, n, true);
+			FFT.transform(data, 0, n, true);
+			assertClose("inverse " + n, expected, data, 2 * n);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (final int n : SIZES) {
+			final double[] original = random(2 * n + 3, n);
+			final double[] data = original.clone();
+			FFT.transform(data, 3, n, false);
+			FFT.transform(data, 3, n, true);
+			assertClose("round trip " + n, original, data, data.length);
+		}
+	}
+
+	@Test
+	public void testReal() {
+		for (final int n : SIZES) {
+			final double[] real = random(n, n);
+			final double[] complex = new double[2 * n];
+			for (int k = 0; k < n; k++)
+				complex[2 * k] = real[k];
+			final double[] expected = dft(complex, n, false);
+
+			final double[] data = new double[n + 2];
+			System.arraycopy(real, 0, data, 0, n);
+			FFT.realTransform(data, 0, n);
+			assertClose("real " + n, expected, data, 2 * (n / 2 + 1));
+
+			FFT.realInverseTransform(data, 0, n);
+			assertClose("real round trip " + n, real, data, n);
+		}
+	}
+
+	@Test
+	public void testFloat() {
+		for (final int n : SIZES) {
+			final double[] values = random(2 * n, n);
+			final double[] expected = dft(values, n, false);
+			final float[] data = new float[2 * n];
+			for (int i = 0; i < data.length; i++)
+				data[i] = (float)values[i];
+			FFT.transform(data, 0, n, false);
+			for (int i = 0; i < data.length; i++)
+				assertEquals("float " + n + " [" + i + "]", expected[i], data[i], 1e-5 * n);
+
+			final float[] real = new float[n + 2];
+			for (int k = 0; k < n; k++)
+				real[k] = (float)values[2 * k];
+			FFT.realTransform(real, 0, n);
+			FFT.realInverseTransform(real, 0, n);
+			for (int k = 0; k < n; k++)
+				assertEquals("float round trip " + n + " [" + k + "]", values[2 * k], real[k], 1e-5);
+		}
+	}
+
+	private static double[] random(final int length, final long seed) {
+		final Random random = new Random(seed);
+		final double[] result = new double[length];
+		for (int i = 0; i < length; i++)
+			result[i] = 2 * random.nextDouble() - 1;
+		return result;
+	}
+
+	/**
+	 * The naive O(n^2) transform (the inverse is normalized).
+	 */
+	private static double[] dft(final double[] data, final int n, final boolean inverse) {
+		final double[] result = new double[2 * n];
+		final double sign = inverse ? 1 : -1;
+		for (int k = 0; k < n; k++) {
+			double re = 0, im = 0;
+			for (int j = 0; j < n; j++) {
+				final double angle = sign * 2 * Math.PI * ((long)j * k % n) / n;
+				final double c = Math.cos(angle), s = Math.sin(angle);
+				re += data[2 * j] * c - data[2 * j + 1] * s;
+				im += data[2 * j] * s + data[2 * j + 1] * c;
+			}
+			result[2 * k] = inverse ? re / n : re;
+			result[2 * k + 1] = inverse ? im / n : im;
+		}
+		return result;
+	}
+
+	private static void assertClose(final String message, final double[] expected, final double[] actual, final int length) {
+		for (int i = 0; i < length; i++)
+			assertEquals(message + " [" + i + "]", expected[i], actual[i], 1e-9 * Math.max(1, length));
+	}
+}
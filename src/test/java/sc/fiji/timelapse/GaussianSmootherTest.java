@@ -0,0 +1,143 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.plugin.filter.GaussianBlur;
+
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the {@link GaussianSmoother} with the convolution of the original
+ * <code>Phase_Map.Gauss1D</code> and with ImageJ's {@link GaussianBlur}.
+ */
+public class GaussianSmootherTest {
+	private final static double[] SIGMAS = { 0.5, 1, 2, 4 };
+
+	@Test
+	public void testConvolution() {
+		for (final double sigma : SIGMAS) {
+			final GaussianSmoother smoother = new GaussianSmoother(sigma);
+			for (final int n : new int[] { smoother.getMinimumLength(), 17, 100 }) {
+				final double[] data = random(n + 2, n);
+				final double[] expected = convolve(data, 1, n, sigma);
+				smoother.smooth(data, 1, n);
+				for (int i = 0; i < n; i++)
+					assertEquals("sigma " + sigma + ", n " + n + " [" + i + "]", expected[i], data[i + 1], 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testShortSignals() {
+		final double sigma = 2;
+		final GaussianSmoother smoother = new GaussianSmoother(sigma);
+		for (int n = 1; n < smoother.getMinimumLength(); n++) {
+			final double[] data = random(n, n);
+			final double[] expected = convolve(data, 0, n, sigma);
+			final float[] pixels = new float[n];
+			for (int i = 0; i < n; i++)
+				pixels[i] = (float)data[i];
+			smoother.convolve(new FloatProcessor(n, 1, pixels), 1);
+			for (int i = 0; i < n; i++)
+				assertEquals("n " + n + " [" + i + "]", expected[i], pixels[i], 1e-6);
+		}
+	}
+
+	@Test
+	public void testRecursiveImpulseResponse() {
+		for (final double sigma : SIGMAS) {
+			final int n = 257, center = n / 2;
+			final double[] data = new double[n];
+			data[center] = 1;
+			new GaussianSmoother(sigma, true).smooth(data, 0, n);
+			double sum = 0, variance = 0;
+			for (int i = 0; i < n; i++) {
+				sum += data[i];
+				variance += data[i] * (i - center) * (i - center);
+			}
+			assertEquals("gain for sigma " + sigma, 1, sum, 1e-6);
+			assertEquals("variance for sigma " + sigma, sigma * sigma, variance, 1e-3 * sigma * sigma);
+		}
+	}
+
+	@Test
+	public void testRecursiveVersusGaussianBlur() {
+		final int width = 128, height = 96;
+		for (final double sigma : new double[] { 1, 2, 4 }) {
+			final float[] pixels = randomFloats(width * height, 17);
+			final FloatProcessor expected = new FloatProcessor(width, height, pixels.clone());
+			final GaussianBlur blur = new GaussianBlur();
+			blur.showProgress(false);
+			blur.blurGaussian(expected, sigma, sigma, 1e-4);
+			final FloatProcessor actual = new FloatProcessor(width, height, pixels.clone());
+			new GaussianSmoother(sigma, true).smooth(actual, 1);
+
+			// the borders are handled differently (mirrored vs. replicated); white
+			// noise in [0, 1] shows the recursive filter's deviation at its worst
+			final int margin = (int)Math.ceil(6 * sigma) + 2;
+			final float[] e = (float[])expected.getPixels(), a = (float[])actual.getPixels();
+			for (int y = margin; y < height - margin; y++)
+				for (int x = margin; x < width - margin; x++)
+					assertEquals("sigma " + sigma + " at " + x + ", " + y, e[y * width + x], a[y * width + x], 0.03);
+		}
+	}
+
+	@Test
+	public void testThreads() {
+		final int width = 100, height = 70;
+		for (final boolean recursive : new boolean[] { false, true }) {
+			final GaussianSmoother smoother = new GaussianSmoother(2, recursive);
+			final float[] pixels = randomFloats(width * height, 5);
+			final FloatProcessor single = new FloatProcessor(width, height, pixels.clone());
+			smoother.smooth(single, 1);
+			final FloatProcessor multi = new FloatProcessor(width, height, pixels.clone());
+			smoother.smooth(multi, 4);
+			final float[] s = (float[])single.getPixels(), m = (float[])multi.getPixels();
+			for (int i = 0; i < s.length; i++)
+				assertEquals("recursive " + recursive + " [" + i + "]", s[i], m[i], 0);
+		}
+	}
+
+	private static double[] random(final int length, final long seed) {
+		final Random random = new Random(seed);
+		final double[] result = new double[length];
+		for (int i = 0; i < length; i++)
+			result[i] = random.nextDouble();
+		return result;
+	}
+
+	private static float[] randomFloats(final int length, final long seed) {
+		final Random random = new Random(seed);
+		final float[] result = new float[length];
+		for (int i = 0; i < length; i++)
+			result[i] = random.nextFloat();
+		return result;
+	}
+
+	/**
+	 * The convolution of <code>Gauss1D</code>: the kernel is truncated at two
+	 * sigmas, and the signal is mirrored about x = 0.5 and x = n - 0.5 (as
+	 * often as needed for signals shorter than the kernel).
+	 */
+	private static double[] convolve(final double[] data, final int offset, final int n, final double sigma) {
+		final int radius = (int)Math.ceil(2 * sigma);
+		double total = 0;
+		for (int k = -radius; k <= radius; k++)
+			total += Math.exp(-0.5 * k * k / sigma / sigma);
+		final double[] result = new double[n];
+		for (int i = 0; i < n; i++)
+			for (int k = -radius; k <= radius; k++) {
+				int j = i + k;
+				while (n > 1 && (j < 0 || j >= n))
+					j = j < 0 ? 1 - j : 2 * n - 1 - j;
+				if (n == 1)
+					j = 0;
+				result[i] += data[offset + j] * Math.exp(-0.5 * k * k / sigma / sigma) / total;
+			}
+		return result;
+	}
+}
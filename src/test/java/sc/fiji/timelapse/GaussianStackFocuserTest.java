@@ -0,0 +1,59 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Verifies that focusing tile by tile yields exactly what focusing the whole
+ * image at once does.
+ */
+public class GaussianStackFocuserTest {
+	@Test
+	public void testTilesMatchWholeImage() {
+		// the last column of tiles is a single pixel wide, narrower than the blur kernel
+		final int width = 513, height = 300, depth = 4;
+		final Random random = new Random(42);
+		final ImageProcessor[] slices = new ImageProcessor[depth];
+		for (int z = 0; z < depth; z++) {
+			final float[] pixels = new float[width * height];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = 100 * random.nextFloat();
+			slices[z] = new FloatProcessor(width, height, pixels);
+		}
+
+		final FocusMeasure[] measures = {
+			new FocusMeasure.GaussianDifference(3),
+			new FocusMeasure.LaplacianVariance(2),
+			new FocusMeasure.Tenengrad(2),
+			new FocusMeasure.LocalVariance(2)
+		};
+		final Gaussian_Stack_Focuser focuser = new Gaussian_Stack_Focuser(3);
+		focuser.setComputeDepthMaps(true);
+		focuser.setThreadCount(4);
+		assertTrue("the image is split into tiles",
+			Gaussian_Stack_Focuser.getTiles(new Rectangle(0, 0, width, height), measures).length > 1);
+		final ImageProcessor[] tiled = focuser.focusAll(slices, measures);
+
+		final ImageProcessor[] whole = new ImageProcessor[focuser.getOutputLabels(measures).length];
+		for (int o = 0; o < whole.length; o++)
+			whole[o] = new FloatProcessor(width, height);
+		focuser.focusTile(slices, new Rectangle(0, 0, width, height), measures, whole,
+			new Gaussian_Stack_Focuser.Workspace(measures.length, true));
+
+		assertEquals(whole.length, tiled.length);
+		for (int o = 0; o < whole.length; o++) {
+			final float[] expected = (float[])whole[o].getPixels(), actual = (float[])tiled[o].getPixels();
+			for (int i = 0; i < expected.length; i++)
+				assertEquals("output " + o + " at " + (i % width) + ", " + (i / width), expected[i], actual[i], 0);
+		}
+	}
+}
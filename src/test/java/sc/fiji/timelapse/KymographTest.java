@@ -0,0 +1,42 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+
+import ij.process.FloatProcessor;
+
+import org.junit.Test;
+
+/**
+ * Tests the row lengths attached to kymographs.
+ */
+public class KymographTest {
+	@Test
+	public void testRowLengths() {
+		final ImagePlus kymograph = new ImagePlus("kymograph", new FloatProcessor(10, 3));
+		assertTrue("no row lengths", Kymograph.getRowLengths(kymograph) == null);
+
+		final int[] rowLengths = { 10, 0, 7 };
+		Kymograph.setRowLengths(kymograph, rowLengths);
+		assertTrue(Kymograph.getRowLengths(kymograph) == rowLengths);
+	}
+
+	@Test
+	public void testStaleRowLengths() {
+		// e.g. the kymograph was cropped, which keeps its properties
+		final ImagePlus kymograph = new ImagePlus("kymograph", new FloatProcessor(8, 3));
+		Kymograph.setRowLengths(kymograph, new int[] { 10, 0, 7 });
+		assertTrue("row longer than the image", Kymograph.getRowLengths(kymograph) == null);
+
+		Kymograph.setRowLengths(kymograph, new int[] { 8, -1, 7 });
+		assertTrue("negative row length", Kymograph.getRowLengths(kymograph) == null);
+
+		Kymograph.setRowLengths(kymograph, new int[] { 8, 0 });
+		assertTrue("row count differs from the height", Kymograph.getRowLengths(kymograph) == null);
+
+		Kymograph.setRowLengths(kymograph, new int[] { 8, 0, 7 });
+		assertEquals(3, Kymograph.getRowLengths(kymograph).length);
+	}
+}
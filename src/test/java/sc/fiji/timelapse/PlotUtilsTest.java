@@ -0,0 +1,31 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link PlotUtils#fft(double[])} with the definition of the
+ * discrete Fourier transform.
+ */
+public class PlotUtilsTest {
+	@Test
+	public void testFFT() {
+		for (final int n : new int[] { 1, 2, 3, 8, 15, 16, 17, 100, 101 }) {
+			final Random random = new Random(n);
+			final double[] series = new double[n];
+			for (int i = 0; i < n; i++)
+				series[i] = random.nextDouble();
+			final double[] result = PlotUtils.fft(series);
+			assertEquals("length", n, result.length);
+			for (int k = 0; k < n; k++) {
+				double expected = 0;
+				for (int j = 0; j < n; j++)
+					expected += series[j] * Math.cos(2 * Math.PI * ((long)j * k % n) / n);
+				assertEquals("n " + n + " [" + k + "]", expected, result[k], 1e-9 * n);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package sc.fiji.timelapse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the encoding of phases as 16-bit codes.
+ */
+public class QuantizedPhaseTest {
+	@Test
+	public void testRoundTrip() {
+		for (int i = 0; i <= 100000; i++) {
+			final float phase = (float)(-Math.PI + 2 * Math.PI * i / 100000);
+			if (phase == 0)
+				continue;
+			final short code = QuantizedPhase.encode(phase);
+			final int value = code & 0xffff;
+			assertTrue("code of " + phase, value >= QuantizedPhase.MIN_CODE && value <= QuantizedPhase.MAX_CODE);
+			assertEquals("phase " + phase, phase, QuantizedPhase.decode(code), QuantizedPhase.RESOLUTION / 2 + 1e-6);
+		}
+	}
+
+	@Test
+	public void testCodes() {
+		for (int value = QuantizedPhase.MIN_CODE; value <= QuantizedPhase.MAX_CODE; value++) {
+			final float phase = QuantizedPhase.decode((short)value);
+			assertTrue("phase of " + value, phase != 0 && Math.abs(phase) <= Math.PI);
+			assertEquals("code " + value, value, QuantizedPhase.encode(phase) & 0xffff);
+		}
+	}
+
+	@Test
+	public void testNoData() {
+		assertEquals(0, QuantizedPhase.encode(0));
+		assertEquals(0, QuantizedPhase.decode((short)0), 0);
+		// tiny phases must not be mistaken for padding
+		assertTrue(QuantizedPhase.encode(1e-7f) != 0);
+		assertTrue(QuantizedPhase.encode(-1e-7f) != 0);
+	}
+
+	@Test
+	public void testPixels() {
+		for (final boolean quantized : new boolean[] { false, true }) {
+			final Object pixels = QuantizedPhase.createPixels(3, quantized);
+			QuantizedPhase.set(pixels, 1, 1.5f);
+			assertFalse(QuantizedPhase.isSet(pixels, 0));
+			assertTrue(QuantizedPhase.isSet(pixels, 1));
+			assertEquals(0, QuantizedPhase.get(pixels, 0), 0);
+			assertEquals(1.5, QuantizedPhase.get(pixels, 1), quantized ? QuantizedPhase.RESOLUTION / 2 : 0);
+		}
+	}
+}